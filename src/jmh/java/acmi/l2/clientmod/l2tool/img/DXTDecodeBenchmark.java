@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import gr.zdimensions.jsquish.Squish;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DXT level decode: Squish into a new array plus raster copy against
+ * {@link DXTDecoder} writing into a reused ABGR array. Run with
+ * {@code -prof gc} to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DXTDecodeBenchmark {
+    @Param({"256", "2048"})
+    public int size;
+
+    @Param({"DXT1", "DXT5"})
+    public Img.Format format;
+
+    private byte[] blocks;
+    private byte[] abgr;
+
+    @Setup
+    public void setup() {
+        blocks = new byte[(size / 4) * (size / 4) * DXTDecoder.getBlockSize(format)];
+        new Random(0).nextBytes(blocks);
+        abgr = new byte[size * size * 4];
+    }
+
+    @Benchmark
+    public BufferedImage squish() {
+        byte[] rgba = Squish.decompressImage(null, size, size, blocks, Squish.CompressionType.valueOf(format.name()));
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_4BYTE_ABGR);
+        image.getRaster().setDataElements(0, 0, size, size, rgba);
+        return image;
+    }
+
+    @Benchmark
+    public byte[] decoder() {
+        DXTDecoder.decode(blocks, 0, size, size, format, abgr);
+        return abgr;
+    }
+}
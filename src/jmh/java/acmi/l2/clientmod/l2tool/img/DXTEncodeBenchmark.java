@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import gr.zdimensions.jsquish.Squish;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DXT level encode: single-threaded Squish against {@link DXTEncoder}
+ * in each quality tier. Source is smooth gradients with noise.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DXTEncodeBenchmark {
+    @Param({"256", "2048"})
+    public int size;
+
+    @Param({"DXT1", "DXT5"})
+    public Img.Format format;
+
+    private int[] argb;
+    private byte[] rgba;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        argb = new int[size * size];
+        rgba = new byte[size * size * 4];
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++) {
+                int a = x * 255 / size;
+                int r = (int) (127 + 127 * Math.sin(x / 9.0));
+                int g = Math.min(255, y * 255 / size + random.nextInt(16));
+                int b = (int) (127 + 127 * Math.cos((x + y) / 13.0));
+                int i = y * size + x;
+                argb[i] = a << 24 | r << 16 | g << 8 | b;
+                rgba[i * 4] = (byte) r;
+                rgba[i * 4 + 1] = (byte) g;
+                rgba[i * 4 + 2] = (byte) b;
+                rgba[i * 4 + 3] = (byte) a;
+            }
+    }
+
+    @Benchmark
+    public byte[] squish() {
+        return Squish.compressImage(rgba, size, size, null, Squish.CompressionType.valueOf(format.name()));
+    }
+
+    @Benchmark
+    public byte[] fast() {
+        return DXTEncoder.encode(argb, size, size, format, DXTEncoder.Quality.FAST);
+    }
+
+    @Benchmark
+    public byte[] normal() {
+        return DXTEncoder.encode(argb, size, size, format, DXTEncoder.Quality.NORMAL);
+    }
+
+    @Benchmark
+    public byte[] high() {
+        return DXTEncoder.encode(argb, size, size, format, DXTEncoder.Quality.HIGH);
+    }
+}
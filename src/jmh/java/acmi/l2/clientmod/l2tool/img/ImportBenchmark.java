@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Image import into a texture slot per source file and texture format,
+ * measures {@link TextureImport#convert}. Setup writes a source file with
+ * the top half red (white for gray) and the bottom half blue (black),
+ * loads it the way the GUI does and checks that both the loaded image and
+ * the texture decoded from the replaced package data keep the top half
+ * on top, so every import path follows the row order of {@link Img}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImportBenchmark {
+    private static final int TOP = 0xffff0000;
+    private static final int BOTTOM = 0xff0000ff;
+
+    @Param({"TGA:DXT1", "TGA:DXT5", "TGA:RGBA8", "TGA:P8",
+            "PNG:DXT1", "PNG:DXT3", "PNG:RGBA8", "PNG:P8",
+            "DDS:DXT1", "BMP8:P8", "BMP16:G16", "PNG16:G16"})
+    public String path;
+
+    @Param({"256", "1024"})
+    public int size;
+
+    private Img img;
+    private MipMapInfo info;
+
+    @Setup
+    public void setup() throws IOException {
+        String source = path.substring(0, path.indexOf(':'));
+        Img.Format format = Img.Format.valueOf(path.substring(path.indexOf(':') + 1));
+
+        File file = File.createTempFile("l2tool-jmh", "." + extension(source));
+        try {
+            writeSource(source, file);
+            img = load(file);
+        } finally {
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+        checkTopDown(img.getMipMap(0), source + " image");
+
+        info = info(format);
+        Img replacement = TextureImport.convert(img, info);
+        String mismatch = TextureImport.mismatch(replacement, info);
+        if (mismatch != null)
+            throw new IllegalStateException(path + ": " + mismatch);
+        if (replacement instanceof P8)
+            info.palette = ((P8) replacement).palette;
+
+        byte[] raw = new byte[info.offsets[info.offsets.length - 1] + info.sizes[info.sizes.length - 1]];
+        TextureImport.copyLevels(replacement, info, raw);
+        checkTopDown(create(raw, info).getMipMap(0), path + " texture");
+    }
+
+    @Benchmark
+    public Img convert() throws IOException {
+        return TextureImport.convert(img, info);
+    }
+
+    private static String extension(String source) {
+        return source.startsWith("BMP") ? "bmp" : source.startsWith("PNG") ? "png" : source.toLowerCase();
+    }
+
+    private void writeSource(String source, File file) throws IOException {
+        switch (source) {
+            case "TGA": {
+                ByteBuffer data = ByteBuffer.allocate(size * size * 4).order(ByteOrder.LITTLE_ENDIAN);
+                for (int y = size - 1; y >= 0; y--)
+                    for (int x = 0; x < size; x++)
+                        data.putInt(y < size / 2 ? TOP : BOTTOM);
+                data.flip();
+                TGAImage.createFromData(size, size, true, false, data).write(file);
+                break;
+            }
+            case "PNG":
+                ImageIO.write(color(), "png", file);
+                break;
+            case "PNG16":
+                ImageIO.write(gray(), "png", file);
+                break;
+            case "DDS":
+                DDS.createFromImage("dds", color(), Img.Format.DXT1, MipMapGenerator.getMipMapCount(size, size), DXTEncoder.Quality.FAST).write(file);
+                break;
+            case "BMP8": {
+                byte[] r = new byte[256];
+                byte[] b = new byte[256];
+                r[0] = (byte) 0xff;
+                b[1] = (byte) 0xff;
+                BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_INDEXED, new IndexColorModel(8, 256, r, new byte[256], b));
+                for (int y = 0; y < size; y++)
+                    for (int x = 0; x < size; x++)
+                        image.getRaster().setSample(x, y, 0, y < size / 2 ? 0 : 1);
+                ImageIO.write(image, "bmp", file);
+                break;
+            }
+            case "BMP16": {
+                ByteBuffer bmp = ByteBuffer.allocate(0x36 + size * size * 2).order(ByteOrder.LITTLE_ENDIAN);
+                bmp.putShort((short) 0x4d42).putInt(bmp.capacity()).putInt(0).putInt(0x36)
+                        .putInt(40).putInt(size).putInt(size).putShort((short) 1).putShort((short) 16)
+                        .putInt(0).putInt(size * size * 2).putInt(0).putInt(0).putInt(0).putInt(0);
+                for (int y = size - 1; y >= 0; y--)
+                    for (int x = 0; x < size; x++)
+                        bmp.putShort((short) (y < size / 2 ? 0xffff : 0));
+                Files.write(file.toPath(), bmp.array());
+                break;
+            }
+            default:
+                throw new IllegalArgumentException(source);
+        }
+    }
+
+    private BufferedImage color() {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, 0, pixels.length / 2, TOP);
+        Arrays.fill(pixels, pixels.length / 2, pixels.length, BOTTOM);
+        return image;
+    }
+
+    private BufferedImage gray() {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_USHORT_GRAY);
+        short[] pixels = ((DataBufferUShort) image.getRaster().getDataBuffer()).getData();
+        Arrays.fill(pixels, 0, pixels.length / 2, (short) 0xffff);
+        return image;
+    }
+
+    /**
+     * Same dispatch as the GUI image chooser.
+     */
+    private static Img load(File file) throws IOException {
+        switch (file.getName().substring(file.getName().lastIndexOf('.') + 1)) {
+            case "dds":
+                return DDS.loadFromFile(file);
+            case "tga":
+                return TGA.loadFromFile(file);
+            case "bmp":
+                byte[] header = Files.readAllBytes(file.toPath());
+                return (header[0x1c] & 0xff) == 8 ? P8.loadFromFile(file) : G16.loadFromFile(file);
+            case "png":
+                BufferedImage png = ImageIO.read(file);
+                return png.getType() == BufferedImage.TYPE_USHORT_GRAY ?
+                        G16.fromImage("png", png) :
+                        TGA.fromImage("png", png);
+            default:
+                throw new IllegalArgumentException(file.getName());
+        }
+    }
+
+    private MipMapInfo info(Img.Format format) {
+        MipMapInfo info = new MipMapInfo();
+        info.name = path;
+        info.format = format;
+        info.width = size;
+        info.height = size;
+        int count = format == Img.Format.G16 ? 1 : MipMapGenerator.getMipMapCount(size, size);
+        info.offsets = new int[count];
+        info.sizes = new int[count];
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            int w = Math.max(size >> i, 1);
+            int h = Math.max(size >> i, 1);
+            info.offsets[i] = offset + 4;
+            info.sizes[i] = levelSize(format, w, h);
+            offset = info.offsets[i] + info.sizes[i] + 10;
+        }
+        return info;
+    }
+
+    private static int levelSize(Img.Format format, int width, int height) {
+        int blocks = Math.max(1, (width + 3) / 4) * Math.max(1, (height + 3) / 4);
+        switch (format) {
+            case DXT1:
+                return blocks * 8;
+            case DXT3:
+            case DXT5:
+                return blocks * 16;
+            case RGBA8:
+                return width * height * 4;
+            case P8:
+                return width * height;
+            case G16:
+                return width * height * 2;
+            default:
+                throw new IllegalArgumentException(format.toString());
+        }
+    }
+
+    private static Img create(byte[] raw, MipMapInfo info) throws IOException {
+        switch (info.format) {
+            case DXT1:
+            case DXT3:
+            case DXT5:
+                return DDS.createFromData(raw, info);
+            case RGBA8:
+                return TGA.createFromData(raw, info);
+            case P8:
+                return P8.createFromData(raw, info);
+            case G16:
+                return G16.createFromData(raw, info);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private static void checkTopDown(BufferedImage image, String what) {
+        int top = image.getRGB(0, 0) >> 16 & 0xff;
+        int bottom = image.getRGB(0, image.getHeight() - 1) >> 16 & 0xff;
+        if (top < 0x80 || bottom >= 0x80)
+            throw new IllegalStateException(what + " is upside down");
+    }
+}
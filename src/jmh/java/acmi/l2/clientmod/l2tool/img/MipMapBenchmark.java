@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full mip chain: Graphics2D scaling of the original for every level
+ * against {@link MipMapGenerator}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MipMapBenchmark {
+    @Param({"256", "2048"})
+    public int size;
+
+    private BufferedImage image;
+    private int[] argb;
+
+    @Setup
+    public void setup() {
+        image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        Random random = new Random(0);
+        for (int i = 0; i < argb.length; i++)
+            argb[i] = random.nextInt();
+    }
+
+    @Benchmark
+    public BufferedImage[] drawImage() {
+        BufferedImage[] mipMaps = new BufferedImage[MipMapGenerator.getMipMapCount(size, size)];
+        mipMaps[0] = image;
+        for (int i = 1; i < mipMaps.length; i++) {
+            int s = Math.max(size >> i, 1);
+            mipMaps[i] = new BufferedImage(s, s, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = mipMaps[i].createGraphics();
+            g.drawImage(image, 0, 0, s, s, null);
+            g.dispose();
+        }
+        return mipMaps;
+    }
+
+    @Benchmark
+    public int[][] generator() {
+        return MipMapGenerator.generate(argb, size, size, MipMapGenerator.getMipMapCount(size, size));
+    }
+}
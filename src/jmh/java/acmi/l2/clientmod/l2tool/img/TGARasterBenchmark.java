@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RGBA8 raster transfer: per-pixel {@link BufferedImage#setRGB}/{@link BufferedImage#getRGB}
+ * against bulk copies into the {@code DataBufferInt}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TGARasterBenchmark {
+    @Param({"256", "2048"})
+    public int size;
+
+    private byte[] data;
+    private BufferedImage image;
+
+    @Setup
+    public void setup() {
+        data = new byte[size * size * 4];
+        new Random(0).nextBytes(data);
+        image = TGA.decode(ByteBuffer.wrap(data), size, size);
+    }
+
+    @Benchmark
+    public BufferedImage decodePerPixel() {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                image.setRGB(x, y, buffer.getInt());
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage decodeBulk() {
+        return TGA.decode(ByteBuffer.wrap(data), size, size);
+    }
+
+    @Benchmark
+    public byte[] encodePerPixel() {
+        byte[] data = new byte[size * size * 4];
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < size; y++)
+            for (int x = 0; x < size; x++)
+                buffer.putInt(image.getRGB(x, y));
+        return data;
+    }
+
+    @Benchmark
+    public byte[] encodeBulk() {
+        return TGA.encode(image);
+    }
+}
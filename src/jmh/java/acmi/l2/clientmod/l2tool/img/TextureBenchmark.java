@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import acmi.l2.clientmod.io.RandomAccessFile;
+import acmi.l2.clientmod.io.UnrealPackage;
+import acmi.l2.clientmod.texconv.ByteCounter;
+import acmi.l2.clientmod.texconv.SyntheticPackage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Texture decode and catalog reads on a {@link SyntheticPackage} per
+ * format, size, mip count and licensee. {@link ByteCounter} reports level
+ * bytes decoded (object bytes for getInfo) per second; the jmh task adds
+ * {@code -prof gc} for allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextureBenchmark {
+    @Param({"DXT1", "DXT5", "RGBA8", "P8", "G16"})
+    public Img.Format format;
+
+    @Param({"256", "1024"})
+    public int size;
+
+    @Param({"1", "11"})
+    public int mipMaps;
+
+    /**
+     * 35 puts about 9 KB of strings into each texture header.
+     */
+    @Param({"0", "35"})
+    public int license;
+
+    private File file;
+    private UnrealPackage up;
+    private RandomAccessFile in;
+    private UnrealPackage.ExportEntry entry;
+    private byte[] raw;
+    private MipMapInfo info;
+    private long levelBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("l2tool-jmh", ".utx");
+        SyntheticPackage.create(file, format, size, mipMaps, 1, 0, license);
+        up = new UnrealPackage(file, true);
+        in = new RandomAccessFile(file, true, null);
+        entry = up.getExportTable().get(0);
+        raw = entry.getObjectRawData();
+        info = MipMapInfo.getInfo(entry, raw);
+        for (int i = 0; i < levels(); i++)
+            levelBytes += info.sizes[i];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        in.close();
+        up.close();
+        if (!file.delete())
+            file.deleteOnExit();
+    }
+
+    private int levels() {
+        return format == Img.Format.P8 || format == Img.Format.G16 ? 1 : info.offsets.length;
+    }
+
+    private Img create() throws IOException {
+        switch (format) {
+            case DXT1:
+            case DXT3:
+            case DXT5:
+                return DDS.createFromData(raw, info);
+            case RGBA8:
+                return TGA.createFromData(raw, info);
+            case P8:
+                return P8.createFromData(raw, info);
+            case G16:
+                return G16.createFromData(raw, info);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    @Benchmark
+    public void decode(ByteCounter counter, Blackhole blackhole) throws IOException {
+        Img img = create();
+        try {
+            for (int i = 0; i < levels(); i++)
+                blackhole.consume(img.getMipMap(i));
+        } finally {
+            img.dispose();
+        }
+        counter.bytes += levelBytes;
+    }
+
+    @Benchmark
+    public MipMapInfo getInfo(ByteCounter counter) {
+        counter.bytes += entry.getSize();
+        return MipMapInfo.getInfo(entry);
+    }
+
+    @Benchmark
+    public MipMapInfo getInfoHeader() {
+        return MipMapInfo.getInfo(entry, in);
+    }
+}
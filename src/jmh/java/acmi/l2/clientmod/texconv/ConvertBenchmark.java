@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.texconv;
+
+import acmi.l2.clientmod.io.UnrealPackage;
+import acmi.l2.clientmod.l2tool.img.Img;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ConvertTool#save} of a {@link SyntheticPackage} with 16 textures.
+ * {@link ByteCounter} reports source package bytes converted per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvertBenchmark {
+    private static final int TEXTURE_COUNT = 16;
+
+    @Param({"DXT1", "RGBA8", "P8"})
+    public Img.Format format;
+
+    @Param({"256", "1024"})
+    public int size;
+
+    @Param({"1", "11"})
+    public int mipMaps;
+
+    private File src;
+    private File dst;
+    private UnrealPackage up;
+
+    @Setup
+    public void setup() throws IOException {
+        src = File.createTempFile("l2tool-jmh", ".utx");
+        dst = File.createTempFile("l2tool-jmh", ".utx");
+        SyntheticPackage.create(src, format, size, mipMaps, TEXTURE_COUNT, 0);
+        up = new UnrealPackage(src, true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        up.close();
+        for (File file : new File[]{src, dst})
+            if (!file.delete())
+                file.deleteOnExit();
+    }
+
+    @Benchmark
+    public void save(ByteCounter counter) throws IOException {
+        ConvertTool.save(up, dst, null);
+        counter.bytes += src.length();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.texconv;
+
+import acmi.l2.clientmod.io.UnrealPackage;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Import table serialization: reflective {@link Field#getInt} against {@link ImportEntryAccessor}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImportTableBenchmark {
+    @Param({"1000", "50000"})
+    public int importCount;
+
+    private List<UnrealPackage.ImportEntry> importTable;
+
+    private Field objectPackage;
+    private Field objectName;
+    private Field classPackage;
+    private Field className;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        importTable = new ArrayList<>(importCount);
+        for (int i = 0; i < importCount; i++)
+            importTable.add(new UnrealPackage.ImportEntry(null, i, i % 7, i % 13, -(i / 2), i));
+
+        objectPackage = UnrealPackage.Entry.class.getDeclaredField("objectPackage");
+        objectPackage.setAccessible(true);
+        objectName = UnrealPackage.Entry.class.getDeclaredField("objectName");
+        objectName.setAccessible(true);
+        classPackage = UnrealPackage.ImportEntry.class.getDeclaredField("classPackage");
+        classPackage.setAccessible(true);
+        className = UnrealPackage.ImportEntry.class.getDeclaredField("className");
+        className.setAccessible(true);
+    }
+
+    @Benchmark
+    public int reflection() throws IllegalAccessException {
+        int hash = 0;
+        for (UnrealPackage.ImportEntry importEntry : importTable) {
+            hash = 31 * hash + classPackage.getInt(importEntry);
+            hash = 31 * hash + className.getInt(importEntry);
+            hash = 31 * hash + objectPackage.getInt(importEntry);
+            hash = 31 * hash + objectName.getInt(importEntry);
+        }
+        return hash;
+    }
+
+    @Benchmark
+    public int accessor() {
+        int hash = 0;
+        for (UnrealPackage.ImportEntry importEntry : importTable) {
+            hash = 31 * hash + ImportEntryAccessor.classPackage(importEntry);
+            hash = 31 * hash + ImportEntryAccessor.className(importEntry);
+            hash = 31 * hash + ImportEntryAccessor.objectPackage(importEntry);
+            hash = 31 * hash + ImportEntryAccessor.objectName(importEntry);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.texconv;
+
+import acmi.l2.clientmod.l2tool.img.Img;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static acmi.l2.clientmod.io.ByteUtil.compactIntToByteArray;
+
+/**
+ * Writes a plain (not encrypted) version 123 package of random textures,
+ * so benchmarks need no client files.
+ * <p>
+ * Exports {@code Texture0..n-1} come first, P8 textures are followed by
+ * their {@code Palette0..n-1}.
+ */
+public final class SyntheticPackage {
+    private static final int VERSION = 123;
+    /**
+     * Public, LoadForClient, LoadForServer, LoadForEdit, Standalone
+     */
+    private static final int OBJECT_FLAGS = 0x000f0004;
+
+    private static final int NONE = 0;
+    private static final int CORE = 1;
+    private static final int ENGINE = 2;
+    private static final int PACKAGE = 3;
+    private static final int CLASS = 4;
+    private static final int TEXTURE = 5;
+    private static final int PALETTE = 6;
+    private static final int FORMAT = 7;
+    private static final int U_SIZE = 8;
+    private static final int V_SIZE = 9;
+
+    private SyntheticPackage() {
+    }
+
+    /**
+     * @param mipMapCount levels per texture, clamped to the full chain
+     */
+    public static void create(File file, Img.Format format, int size, int mipMapCount, int textureCount, long seed) throws IOException {
+        create(file, format, size, mipMapCount, textureCount, seed, 0);
+    }
+
+    /**
+     * @param license licensee version of the package, decides the block
+     *                {@link ConvertTool#readUnk} skips in every texture
+     */
+    public static void create(File file, Img.Format format, int size, int mipMapCount, int textureCount, long seed, int license) throws IOException {
+        byte[] unknown = unknown(license);
+        Random random = new Random(seed);
+        boolean palette = format == Img.Format.P8;
+        mipMapCount = Math.min(mipMapCount, 32 - Integer.numberOfLeadingZeros(size));
+
+        List<String> names = new ArrayList<>(Arrays.asList(
+                "None", "Core", "Engine", "Package", "Class", "Texture", "Palette", "Format", "USize", "VSize"));
+        int firstTextureName = names.size();
+        for (int i = 0; i < textureCount; i++)
+            names.add("Texture" + i);
+        int firstPaletteName = names.size();
+        if (palette)
+            for (int i = 0; i < textureCount; i++)
+                names.add("Palette" + i);
+
+        int exportCount = palette ? textureCount * 2 : textureCount;
+        int[] offsets = new int[exportCount];
+        int[] sizes = new int[exportCount];
+
+        try (PackageWriter out = new PackageWriter(file)) {
+            ByteBuffer header = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0x9E2A83C1);
+            header.putShort((short) VERSION);
+            header.putShort((short) license);
+            header.putInt(0);
+            header.putInt(names.size());
+            header.putInt(0);
+            header.putInt(exportCount);
+            header.putInt(0);
+            header.putInt(4);
+            header.putInt(0);
+            byte[] guid = new byte[16];
+            random.nextBytes(guid);
+            header.put(guid);
+            header.putInt(1);
+            header.putInt(exportCount);
+            header.putInt(names.size());
+            header.flip();
+            out.write(header);
+
+            header.putInt(16, out.position());
+            for (String name : names) {
+                out.writeString(name);
+                out.writeInt(0);
+            }
+
+            for (int i = 0; i < textureCount; i++) {
+                offsets[i] = out.position();
+                byte[] texture = texture(format, size, mipMapCount, palette ? textureCount + i + 1 : 0, unknown, offsets[i], random);
+                sizes[i] = texture.length;
+                out.write(texture);
+            }
+            if (palette)
+                for (int i = 0; i < textureCount; i++) {
+                    offsets[textureCount + i] = out.position();
+                    byte[] colors = palette(random);
+                    sizes[textureCount + i] = colors.length;
+                    out.write(colors);
+                }
+
+            header.putInt(32, out.position());
+            writeImport(out, CORE, PACKAGE, 0, CORE);
+            writeImport(out, CORE, PACKAGE, 0, ENGINE);
+            writeImport(out, CORE, CLASS, -2, TEXTURE);
+            writeImport(out, CORE, CLASS, -2, PALETTE);
+
+            header.putInt(24, out.position());
+            for (int i = 0; i < exportCount; i++) {
+                boolean texture = i < textureCount;
+                out.writeCompactInt(texture ? -3 : -4);
+                out.writeCompactInt(0);
+                out.writeInt(0);
+                out.writeCompactInt(texture ? firstTextureName + i : firstPaletteName + i - textureCount);
+                out.writeInt(OBJECT_FLAGS);
+                out.writeCompactInt(sizes[i]);
+                out.writeCompactInt(offsets[i]);
+            }
+
+            header.rewind();
+            out.write(header, 0);
+        }
+    }
+
+    private static void writeImport(PackageWriter out, int classPackage, int className, int objectPackage, int objectName) throws IOException {
+        out.writeCompactInt(classPackage);
+        out.writeCompactInt(className);
+        out.writeInt(objectPackage);
+        out.writeCompactInt(objectName);
+    }
+
+    /**
+     * @param paletteRef   object reference of the palette, 0 for none
+     * @param unknown      block between the properties and the mip maps
+     * @param objectOffset file offset of the object, mip headers hold absolute offsets
+     */
+    private static byte[] texture(Img.Format format, int size, int mipMapCount, int paletteRef, byte[] unknown, int objectOffset, Random random) {
+        int capacity = 64 + unknown.length;
+        for (int i = 0; i < mipMapCount; i++)
+            capacity += 20 + levelSize(format, Math.max(size >> i, 1));
+        ByteBuffer buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.put(compactIntToByteArray(FORMAT));
+        buffer.put((byte) 0x01);
+        buffer.put((byte) format.ordinal());
+        buffer.put(compactIntToByteArray(U_SIZE));
+        buffer.put((byte) 0x22);
+        buffer.putInt(size);
+        buffer.put(compactIntToByteArray(V_SIZE));
+        buffer.put((byte) 0x22);
+        buffer.putInt(size);
+        if (paletteRef != 0) {
+            byte[] ref = compactIntToByteArray(paletteRef);
+            buffer.put(compactIntToByteArray(PALETTE));
+            switch (ref.length) {
+                case 1:
+                    buffer.put((byte) 0x05);
+                    break;
+                case 2:
+                    buffer.put((byte) 0x15);
+                    break;
+                case 4:
+                    buffer.put((byte) 0x25);
+                    break;
+                default:
+                    buffer.put((byte) 0x55);
+                    buffer.put((byte) ref.length);
+            }
+            buffer.put(ref);
+        }
+        buffer.put(compactIntToByteArray(NONE));
+        buffer.put(unknown);
+
+        buffer.put(compactIntToByteArray(mipMapCount));
+        for (int i = 0; i < mipMapCount; i++) {
+            int levelSize = Math.max(size >> i, 1);
+            byte[] data = new byte[levelSize(format, levelSize)];
+            random.nextBytes(data);
+            byte[] dataSize = compactIntToByteArray(data.length);
+            buffer.putInt(objectOffset + buffer.position() + 4 + dataSize.length + data.length);
+            buffer.put(dataSize);
+            buffer.put(data);
+            buffer.putInt(levelSize);
+            buffer.putInt(levelSize);
+            buffer.put((byte) (31 - Integer.numberOfLeadingZeros(levelSize)));
+            buffer.put((byte) (31 - Integer.numberOfLeadingZeros(levelSize)));
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Block {@link ConvertTool#readUnk} skips for the licensee. For 33-36
+     * it holds 17 long strings, which makes the texture header larger than
+     * the window MipMapInfo reads first.
+     */
+    private static byte[] unknown(int license) {
+        if (license <= 10 || (license >= 29 && license <= 32))
+            return new byte[0];
+        if (license <= 28)
+            return new byte[4];
+        if (license > 36)
+            throw new IllegalArgumentException("License " + license + " is not supported");
+
+        char[] chars = new char[511];
+        Arrays.fill(chars, 'x');
+        byte[] string = new String(chars).getBytes(StandardCharsets.US_ASCII);
+        byte[] length = compactIntToByteArray(string.length + 1);
+        int skip = license == 36 ? 1058 : 1067;
+        ByteBuffer buffer = ByteBuffer.allocate(skip + 17 * (length.length + string.length + 1) + 4);
+        buffer.position(skip);
+        for (int i = 0; i < 17; i++) {
+            buffer.put(length);
+            buffer.put(string);
+            buffer.put((byte) 0);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] palette(Random random) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 256 * 4);
+        buffer.put(compactIntToByteArray(NONE));
+        buffer.put(compactIntToByteArray(256));
+        byte[] colors = new byte[256 * 4];
+        random.nextBytes(colors);
+        buffer.put(colors);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * @return bytes of a square level
+     */
+    public static int levelSize(Img.Format format, int size) {
+        switch (format) {
+            case DXT1:
+                return ((size + 3) / 4) * ((size + 3) / 4) * 8;
+            case DXT3:
+            case DXT5:
+                return ((size + 3) / 4) * ((size + 3) / 4) * 16;
+            case RGBA8:
+                return size * size * 4;
+            case G16:
+                return size * size * 2;
+            case P8:
+                return size * size;
+            default:
+                throw new IllegalArgumentException("Format " + format + " is not supported");
+        }
+    }
+}
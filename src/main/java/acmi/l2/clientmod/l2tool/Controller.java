@@ -26,7 +26,6 @@ import acmi.l2.clientmod.io.RandomAccessFile;
 import acmi.l2.clientmod.l2tool.img.*;
 import acmi.l2.clientmod.l2tool.textureview.TextureView;
 import acmi.l2.clientmod.l2tool.img.MipMapInfo;
-import acmi.l2.clientmod.l2tool.img.TextureProperties;
 import acmi.l2.clientmod.texconv.ConvertTool;
 import acmi.util.AutoCompleteComboBox;
 import javafx.application.Platform;
@@ -36,7 +35,6 @@ import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
-import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.fxml.Initializable;
@@ -47,21 +45,24 @@ import javafx.scene.layout.StackPane;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
+import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URL;
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
-
-import static acmi.l2.clientmod.io.BufferUtil.getCompactInt;
-import static javafx.collections.FXCollections.sort;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
 
 public class Controller implements Initializable {
     private static final String KEY_UTX_INITIAL_DIRECTORY = "utx_initial_directory";
@@ -108,10 +109,13 @@ public class Controller implements Initializable {
         add(Img.Format.G16);
         add(Img.Format.P8);
     }};
+    private static final int PREFETCH = 2;
 
     private Stage textureViewWindow;
     private TextureView textureViewController;
-    private Future loadImageTaskFuture;
+    private final TextureLoader textureLoader = new TextureLoader();
+    private final AtomicInteger scanCount = new AtomicInteger();
+    private PackageSession session;
 
     public void setApplication(L2Tool application) {
         this.application = application;
@@ -134,119 +138,37 @@ public class Controller implements Initializable {
             textureList.getSelectionModel().clearSelection();
             textureList.getItems().clear();
 
-            ForkJoinPool.commonPool().execute(() -> {
-                Platform.runLater(() -> {
-                    progress.setProgress(0);
-                    progress.setVisible(true);
-                });
+            int scan = scanCount.incrementAndGet();
+            BooleanSupplier cancelled = () -> scanCount.get() != scan;
+            progress.setProgress(0);
+            progress.setVisible(true);
 
-                try (UnrealPackage up = new UnrealPackage(new File(newPackagePath), true)) {
-                    up.getNameTable();
-                    up.getImportTable();
-                    int exportSize = up.getExportTable().size();
-
-                    AtomicInteger counter = new AtomicInteger();
-                    for (UnrealPackage.ExportEntry ee : up.getExportTable()) {
-                        if (ee.getObjectClass() != null)
-                            switch (ee.getObjectClass().getObjectFullName()) {
-                                case "Engine.Texture": {
-                                    MipMapInfo info = MipMapInfo.getInfo(ee);
-                                    if (SUPPORTED_FORMATS.contains(info.format)) {
-                                        if (info.offsets.length > 0)
-                                            Platform.runLater(() -> textureList.getItems().add(info));
-                                    }
-                                    break;
-                                }
-                                case "Engine.GFxFlash": {
-                                    byte[] raw = ee.getObjectRawData();
-                                    ByteBuffer data = ByteBuffer.wrap(raw);
-
-                                    new TextureProperties().read(up, data);
-
-                                    String ext = up.nameReference(getCompactInt(data)).toLowerCase();
-                                    switch (ext) {
-                                        case "tga": {
-                                            final MipMapInfo info = new MipMapInfo();
-                                            info.exportIndex = ee.getIndex();
-                                            info.name = ee.getObjectFullName();
-
-                                            int dataLength = getCompactInt(data);
-
-                                            // initial header fields
-                                            int idLength = data.get() & 0xff;
-                                            int colorMapType = data.get() & 0xff;
-                                            int imageType = data.get() & 0xff;
-
-                                            // color map header fields
-                                            int firstEntryIndex = data.getShort() & 0xffff;
-                                            int colorMapLength = data.getShort() & 0xffff;
-                                            byte colorMapEntrySize = data.get();
-
-                                            // TGA image specification fields
-                                            int xOrigin = data.getShort() & 0xffff;
-                                            int yOrigin = data.getShort() & 0xffff;
-                                            int width = data.getShort() & 0xffff;
-                                            int height = data.getShort() & 0xffff;
-                                            byte pixelDepth = data.get();
-                                            byte imageDescriptor = data.get();
-
-                                            info.format = Img.Format.RGBA8;
-                                            info.width = width;
-                                            info.height = height;
-                                            info.offsets = new int[]{data.position()};
-                                            info.sizes = new int[]{raw.length - data.position()};
-
-                                            if (info.offsets.length > 0)
-                                                Platform.runLater(() -> textureList.getItems().add(info));
-                                            break;
-                                        }
-                                        case "dds": {
-                                            final MipMapInfo info = new MipMapInfo();
-                                            info.exportIndex = ee.getIndex();
-                                            info.name = ee.getObjectFullName();
-
-                                            byte[] dds = new byte[getCompactInt(data)];
-                                            int dataOffset = data.position();
-                                            data.get(dds);
-                                            ByteBuffer buffer = ByteBuffer.wrap(dds);
-                                            DDSImage image = DDSImage.read(buffer);
-                                            info.format = DDS.getFormat(image.getCompressionFormat());
-                                            info.width = image.getWidth();
-                                            info.height = image.getHeight();
-                                            DDSImage.ImageInfo[] infos = image.getAllMipMaps();
-                                            info.offsets = new int[infos.length];
-                                            info.sizes = new int[infos.length];
-                                            info.offsets[0] = 128 + dataOffset;
-                                            info.sizes[0] = infos[0].getData().limit();
-                                            for (int i = 1; i < infos.length; i++) {
-                                                info.offsets[i] = info.offsets[i - 1] + info.sizes[i - 1];
-                                                info.sizes[i] = infos[i].getData().limit();
-                                            }
-                                            Platform.runLater(() -> textureList.getItems().add(info));
-                                            break;
-                                        }
-                                    }
-
-                                    break;
-                                }
-                                default:
-                                    //ignore
-                            }
-
-                        Platform.runLater(() ->
-                                progress.setProgress((double) counter.incrementAndGet() / exportSize));
+            PackageSession session = this.session;
+            ForkJoinPool.commonPool().execute(() -> {
+                try {
+                    List<MipMapInfo> textures;
+                    try (UnrealPackage up = session.openPackage()) {
+                        textures = TextureIndex.get(up, session.getFile(), FxUpdates.progress(value -> {
+                            if (!cancelled.getAsBoolean())
+                                progress.setProgress(value);
+                        }));
                     }
-
-                    Platform.runLater(() -> {
-                        sort(textureList.getItems(), (o1, o2) ->
-                                o1.name.toLowerCase().compareTo(o2.name.toLowerCase()));
-
+                    List<MipMapInfo> supported = textures.stream()
+                            .filter(info -> SUPPORTED_FORMATS.contains(info.format))
+                            .filter(info -> info.offsets.length > 0)
+                            .sorted(Comparator.comparing(info -> info.name, String.CASE_INSENSITIVE_ORDER))
+                            .collect(Collectors.toList());
+                    FxUpdates.addAll(textureList.getItems(), supported, cancelled, () -> {
                         AutoCompleteComboBox.autoCompleteComboBox(textureList, AutoCompleteComboBox.AutoCompleteMode.CONTAINING);
+                        progress.setVisible(false);
                     });
                 } catch (final Exception e) {
-                    Platform.runLater(() -> showError(e));
-                } finally {
-                    Platform.runLater(() -> progress.setVisible(false));
+                    Platform.runLater(() -> {
+                        if (cancelled.getAsBoolean())
+                            return;
+                        progress.setVisible(false);
+                        showError(e);
+                    });
                 }
             });
         });
@@ -266,7 +188,8 @@ public class Controller implements Initializable {
         fileChooser.getExtensionFilters().addAll(
                 new FileChooser.ExtensionFilter("DXT", "*.dds"),
                 new FileChooser.ExtensionFilter("TGA", "*.tga"),
-                new FileChooser.ExtensionFilter("BMP", "*.bmp")
+                new FileChooser.ExtensionFilter("BMP", "*.bmp"),
+                new FileChooser.ExtensionFilter("PNG", "*.png")
         );
         if (imgInitialDirectory.get() != null) {
             File dir = new File(imgInitialDirectory.get());
@@ -305,11 +228,20 @@ public class Controller implements Initializable {
                         }
                     }
                     break;
+                case "png":
+                    BufferedImage png = ImageIO.read(file);
+                    if (png == null)
+                        throw new IOException("Unsupported PNG");
+                    String name = file.getName().substring(0, file.getName().lastIndexOf('.'));
+                    image = png.getType() == BufferedImage.TYPE_USHORT_GRAY ?
+                            G16.fromImage(name, png) :
+                            TGA.fromImage(name, png);
+                    break;
                 default:
                     throw new IOException("Unknown file format");
             }
             imgProperty.setValue(image);
-            imgPath.setText(file.getAbsolutePath() + "[" + image.getWidth() + "x" + image.getHeight() + "," + image.getFormat() + "," + image.getMipMaps().length + "]");
+            imgPath.setText(file.getAbsolutePath() + "[" + image.getWidth() + "x" + image.getHeight() + "," + image.getFormat() + "," + image.getMipMapCount() + "]");
         } catch (Exception e) {
             showError(e);
         }
@@ -334,11 +266,21 @@ public class Controller implements Initializable {
 
         utxInitialDirectory.set(file.getParent());
 
-        try (UnrealPackage utxFile = new UnrealPackage(file, true)) {
-            utxPathProperty.setValue(file.getAbsolutePath());
+        PackageSession newSession = new PackageSession(file);
+        try {
+            newSession.check();
         } catch (Exception e) {
+            newSession.close();
             showError(e);
+            return;
         }
+
+        PackageSession oldSession = session;
+        if (oldSession != null)
+            ForkJoinPool.commonPool().execute(oldSession::close);
+        session = newSession;
+        textureLoader.setSession(newSession);
+        utxPathProperty.setValue(file.getAbsolutePath());
     }
 
     @FXML
@@ -360,18 +302,14 @@ public class Controller implements Initializable {
                 StackPane pane = loader.load();
 
                 textureViewController = loader.getController();
+                textureViewController.setOnError(Controller::showError);
+                textureViewController.mipMapSourceProperty().addListener((observable, oldValue, newValue) -> {
+                    textureLoader.hold(newValue);
+                    textureLoader.release(oldValue);
+                });
                 textureInfoProperty.addListener((observable, oldValue, newValue) -> {
-                    if (!textureViewWindow.isShowing())
-                        return;
-
-                    if (newValue == null) {
-                        textureViewController.imageProperty().setValue(null);
-                        return;
-                    }
-
-                    if (!loadImageTaskFuture.isDone())
-                        loadImageTaskFuture.cancel(false);
-                    loadImageTaskFuture = ForkJoinPool.commonPool().submit(new LoadUtxImageTask(textureViewController));
+                    if (textureViewWindow.isShowing())
+                        loadTexture(newValue);
                 });
 
                 textureViewWindow = new Stage();
@@ -387,59 +325,52 @@ public class Controller implements Initializable {
             textureViewWindow.close();
         } else {
             textureViewWindow.show();
-            loadImageTaskFuture = ForkJoinPool.commonPool().submit(new LoadUtxImageTask(textureViewController));
+            loadTexture(textureInfoProperty.get());
         }
     }
 
-    private BufferedImage loadUtxImage() throws Exception {
-        try (UnrealPackage utx = new UnrealPackage(new File(utxPathProperty.get()), true)) {
-            UnrealPackage.ExportEntry texture = utx.getExportTable().get(textureInfoProperty.get().exportIndex);
-            byte[] raw = texture.getObjectRawData();
-            switch (textureInfoProperty.get().format) {
-                case RGBA8:
-                    return TGA.createFromData(raw, textureInfoProperty.get()).getMipMaps()[0];
-                case DXT1:
-                case DXT3:
-                case DXT5:
-                    return DDS.createFromData(raw, textureInfoProperty.get()).getMipMaps()[0];
-                case G16:
-                    return G16.createFromData(raw, textureInfoProperty.get()).getMipMaps()[0];
-                case P8:
-                    return P8.createFromData(raw, textureInfoProperty.get()).getMipMaps()[0];
-                default:
-                    throw new Exception("Unsupported format " + textureInfoProperty.get().format);
-            }
+    private void loadTexture(MipMapInfo info) {
+        if (info == null) {
+            showImg(null);
+            return;
         }
-    }
 
-    private class LoadUtxImageTask extends Task<BufferedImage> {
-        LoadUtxImageTask(TextureView controller) {
-            this.setOnSucceeded(event -> controller.imageProperty().setValue(this.getValue()));
-            this.setOnFailed(event -> {
-                //noinspection ThrowableResultOfMethodCallIgnored
-                Throwable e = event.getSource().getException();
-                if (e != null) {
-                    showError(e);
-                } else {
-                    show(Alert.AlertType.ERROR, "Error", null, "Couldn't load image");
-                }
-            });
+        List<MipMapInfo> items = textureList.getItems();
+        int index = items.indexOf(info);
+        List<MipMapInfo> neighbours = new ArrayList<>();
+        for (int i = 1; index >= 0 && i <= PREFETCH; i++) {
+            if (index + i < items.size())
+                neighbours.add(items.get(index + i));
+            if (index - i >= 0)
+                neighbours.add(items.get(index - i));
         }
 
-        @Override
-        protected BufferedImage call() throws Exception {
-            try {
-                return loadUtxImage();
-            } catch (Exception e) {
-                setException(e);
-            }
-            return null;
-        }
+        int level = TextureView.getMipMapLevel(textureViewController.getScale());
+        textureLoader.select(info, neighbours, level).whenComplete((img, e) -> Platform.runLater(() -> {
+            if (textureInfoProperty.get() != info || e instanceof CancellationException)
+                return;
+
+            if (e != null)
+                showError(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            else
+                showImg(img);
+        }));
+    }
+
+    /**
+     * The shown texture is held, so the loader doesn't dispose it while the
+     * view uses it.
+     */
+    private void showImg(Img img) {
+        Img old = textureViewController.getImg();
+        textureLoader.hold(img);
+        textureViewController.setImg(img);
+        textureLoader.release(old);
     }
 
     @FXML
     private void exportTexture() {
-        try (UnrealPackage utx = new UnrealPackage(new File(utxPathProperty.get()), true)) {
+        try {
             MipMapInfo info = textureInfoProperty.get();
 
             FileChooser fileChooser = new FileChooser();
@@ -472,24 +403,34 @@ public class Controller implements Initializable {
                 return;
             exportInitialDirectory.setValue(file.getParent());
 
-            UnrealPackage.ExportEntry texture = utx.getExportTable().get(info.exportIndex);
-            byte[] raw = texture.getObjectRawData();
-            switch (info.format) {
-                case DXT1:
-                case DXT3:
-                case DXT5:
-                    DDS.createFromData(raw, info).write(file);
-                    break;
-                case RGBA8:
-                    TGA.createFromData(raw, info).write(file);
-                    break;
-                case G16:
-                    G16.createFromData(raw, info).write(file);
-                    break;
-                case P8:
-                    P8.createFromData(raw, info).write(file);
-                    break;
-            }
+            progress.setProgress(-1);
+            progress.setVisible(true);
+            PackageSession session = this.session;
+            ForkJoinPool.commonPool().execute(() -> {
+                try {
+                    byte[] raw = session.readExport(info.exportIndex);
+                    switch (info.format) {
+                        case DXT1:
+                        case DXT3:
+                        case DXT5:
+                            DDS.createFromData(raw, info).write(file);
+                            break;
+                        case RGBA8:
+                            TGA.createFromData(raw, info).write(file);
+                            break;
+                        case G16:
+                            G16.createFromData(raw, info).write(file);
+                            break;
+                        case P8:
+                            P8.createFromData(raw, info).write(file);
+                            break;
+                    }
+                } catch (Exception e) {
+                    Platform.runLater(() -> showError(e));
+                } finally {
+                    Platform.runLater(() -> progress.setVisible(false));
+                }
+            });
         } catch (Exception e) {
             showError(e);
         }
@@ -499,50 +440,46 @@ public class Controller implements Initializable {
     private void replaceTexture() {
         MipMapInfo info = textureInfoProperty.get();
         Img data = imgProperty.get();
+        int paletteIndex = info.palette != null ? info.palette.exportIndex : 0;
 
-        if (info.format != data.getFormat()) {
-            show(Alert.AlertType.WARNING, "Replace failed", null,
-                    "img format:\t" + data.getFormat() + "\nutx format:\t" + info.format);
-            return;
-        }
-
-        if (info.width != data.getWidth() || info.height != data.getHeight()) {
-            show(Alert.AlertType.WARNING, "Replace failed", null,
-                    "img size:\t" + data.getWidth() + "x" + data.getHeight() + "\nutx size:\t" + info.width + "x" + info.height);
-            return;
-        }
-
-        if (info.offsets.length > data.getMipMaps().length) {
-            show(Alert.AlertType.WARNING, "Replace failed", null,
-                    "img mipmap count:\t" + data.getMipMaps().length + "\nutx mipmap count:\t" + info.offsets.length);
-            return;
-        }
-
-        try (UnrealPackage utx = new UnrealPackage(new File(utxPathProperty.get()), false)) {
-            UnrealPackage.ExportEntry texture = utx.getExportTable().get(info.exportIndex);
-            byte[] buffer = texture.getObjectRawData();
-            for (int i = 0; i < info.offsets.length; i++) {
-                byte[] replace = null;
-                for (int j = 0; j < data.getMipMaps().length; j++) {
-                    if (data.getData()[j].length == info.sizes[i])
-                        replace = data.getData()[j];
+        progress.setProgress(-1);
+        progress.setVisible(true);
+        PackageSession session = this.session;
+        ForkJoinPool.commonPool().execute(() -> {
+            try {
+                Img replacement = TextureImport.convert(data, info);
+                String mismatch = TextureImport.mismatch(replacement, info);
+                if (mismatch != null) {
+                    Platform.runLater(() -> show(Alert.AlertType.WARNING, "Replace failed", null, mismatch));
+                    return;
                 }
-                if (replace == null)
-                    throw new Exception("No suitable MipMap found");
 
-                System.arraycopy(replace, 0, buffer, info.offsets[i], info.sizes[i]);
-            }
-            texture.setObjectRawData(buffer);
+                Palette palette = info.format == Img.Format.P8 ? ((P8) replacement).palette : null;
+                if (palette != null)
+                    palette.exportIndex = paletteIndex;
+
+                String name = session.write(utx -> {
+                    UnrealPackage.ExportEntry texture = utx.getExportTable().get(info.exportIndex);
+                    byte[] buffer = texture.getObjectRawData();
+                    TextureImport.copyLevels(replacement, info, buffer);
+                    texture.setObjectRawData(buffer);
 
-            if (info.format == Img.Format.P8) {
-                P8 p8 = (P8) data;
-                info.palette = p8.palette;
-                info.palette.writeToUnrealPackage(utx);
+                    if (palette != null)
+                        palette.writeToUnrealPackage(utx);
+                    return texture.toString();
+                });
+                Platform.runLater(() -> {
+                    if (palette != null)
+                        info.palette = palette;
+                    textureLoader.invalidate(info);
+                    show(Alert.AlertType.INFORMATION, "Success", null, "Texture " + name + " successfully replaced.");
+                });
+            } catch (Exception e) {
+                Platform.runLater(() -> showError(e));
+            } finally {
+                Platform.runLater(() -> progress.setVisible(false));
             }
-            show(Alert.AlertType.INFORMATION, "Success", null, "Texture " + texture.toString() + " successfully replaced.");
-        } catch (Exception e) {
-            showError(e);
-        }
+        });
     }
 
     @FXML
@@ -569,10 +506,13 @@ public class Controller implements Initializable {
         final String savePath1 = savePath;
         progress.setProgress(-1);
         progress.setVisible(true);
+        PackageSession session = this.session;
         ForkJoinPool.commonPool().execute(() -> {
-            try (UnrealPackage up = new UnrealPackage(new File(utxPathProperty.get()), true)) {
+            try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ConvertTool.save(up, new File(savePath1), new PrintStream(baos, true, "utf-16le"));
+                try (UnrealPackage up = session.openPackage()) {
+                    ConvertTool.save(up, new File(savePath1), new PrintStream(baos, true, "utf-16le"));
+                }
                 Platform.runLater(() -> show(Alert.AlertType.INFORMATION, "Convert complete", baos.size() == 0 ? null : "Changelist", baos.size() == 0 ? "No changes." : new String(baos.toByteArray(), Charset.forName("utf-16le"))));
             } catch (Exception e) {
                 Platform.runLater(() -> showError(e));
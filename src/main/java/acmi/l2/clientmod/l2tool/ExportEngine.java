@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool;
+
+import acmi.l2.clientmod.io.RandomAccessFile;
+import acmi.l2.clientmod.io.UnrealPackage;
+import acmi.l2.clientmod.l2tool.img.DDS;
+import acmi.l2.clientmod.l2tool.img.MipMapInfo;
+import acmi.l2.clientmod.texconv.ConvertTool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Runs export and convert jobs on a shared work-stealing pool.
+ * <p>
+ * Every package is a task that forks one subtask per texture, so idle workers
+ * steal entries of big packages while small ones are already done. Object data
+ * is read from a package one entry at a time (the package file is not
+ * thread-safe), decoding and writing run concurrently. Log lines of a package
+ * are printed in entry order, same as the serial export. DXT textures of
+ * packages that are not encrypted are copied from the file as is.
+ */
+public class ExportEngine implements AutoCloseable {
+    private final ForkJoinPool pool;
+    private final long startTime = System.nanoTime();
+    private final LongAdder textureCount = new LongAdder();
+    private final LongAdder byteCount = new LongAdder();
+
+    public ExportEngine(int threads) {
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * @return number of entries that failed to export
+     */
+    public int export(UnrealPackage up, List<UnrealPackage.ExportEntry> entries, PrintStream log) {
+        return pool.invoke(new ExportPackageTask(up, null, entries, log));
+    }
+
+    /**
+     * Same as {@link #export(UnrealPackage, List, PrintStream)}, DXT textures
+     * of a plain package are copied straight from the file.
+     *
+     * @param file file of the package
+     */
+    public int export(UnrealPackage up, File file, List<UnrealPackage.ExportEntry> entries, PrintStream log) throws IOException {
+        try (PackageFile source = PackageFile.openPlain(file)) {
+            return pool.invoke(new ExportPackageTask(up, source, entries, log));
+        }
+    }
+
+    /**
+     * @return number of entries and packages that failed to export
+     */
+    public int exportAll(List<File> packages, PrintStream log) {
+        return pool.invoke(new AllTask(packages.stream()
+                .map(file -> new ExportFileTask(file, log))
+                .collect(Collectors.toList())));
+    }
+
+    /**
+     * @return number of packages that failed to convert
+     */
+    public int convertAll(List<File> packages, File outDir, PrintStream log) {
+        return pool.invoke(new AllTask(packages.stream()
+                .map(file -> new ConvertFileTask(file, outDir, log))
+                .collect(Collectors.toList())));
+    }
+
+    public void printSummary(PrintStream out) {
+        double seconds = Math.max((System.nanoTime() - startTime) / 1e9, 1e-3);
+        double mb = byteCount.sum() / (1024.0 * 1024.0);
+        out.println(String.format("%d textures, %.1f MB in %.1f s (%.1f textures/sec, %.1f MB/sec)",
+                textureCount.sum(), mb, seconds, textureCount.sum() / seconds, mb / seconds));
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    @SuppressWarnings("serial")
+    private static class AllTask extends RecursiveTask<Integer> {
+        private final List<? extends ForkJoinTask<Integer>> tasks;
+
+        AllTask(List<? extends ForkJoinTask<Integer>> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected Integer compute() {
+            invokeAll(tasks);
+            return tasks.stream()
+                    .mapToInt(ForkJoinTask::join)
+                    .sum();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class ExportFileTask extends RecursiveTask<Integer> {
+        private final File file;
+        private final PrintStream log;
+
+        ExportFileTask(File file, PrintStream log) {
+            this.file = file;
+            this.log = log;
+        }
+
+        @Override
+        protected Integer compute() {
+            try (UnrealPackage up = new UnrealPackage(file, true);
+                 PackageFile source = PackageFile.openPlain(file)) {
+                List<UnrealPackage.ExportEntry> textures = up.getExportTable()
+                        .stream()
+                        .filter(entry -> ConvertTool.isTexture(entry.getObjectClass().getObjectFullName()))
+                        .collect(Collectors.toList());
+                return new ExportPackageTask(up, source, textures, log).invoke();
+            } catch (Exception e) {
+                synchronized (log) {
+                    log.println(file + " " + e.getClass().getSimpleName() + ": " + e.getMessage());
+                }
+                return 1;
+            }
+        }
+    }
+
+    /**
+     * Package file opened for direct reads, only for packages that are not
+     * encrypted, object offsets are file offsets then.
+     */
+    private static class PackageFile implements AutoCloseable {
+        private static final int MAGIC = 0x9E2A83C1;
+
+        final FileChannel channel;
+        final RandomAccessFile in;
+
+        private PackageFile(FileChannel channel, RandomAccessFile in) {
+            this.channel = channel;
+            this.in = in;
+        }
+
+        /**
+         * @return null if the package is encrypted
+         */
+        static PackageFile openPlain(File file) throws IOException {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                if (channel.read(magic, 0) < 4 || magic.getInt(0) != MAGIC) {
+                    channel.close();
+                    return null;
+                }
+                return new PackageFile(channel, new RandomAccessFile(file, true, null));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class ExportPackageTask extends RecursiveTask<Integer> {
+        private final UnrealPackage up;
+        private final PackageFile source;
+        private final List<UnrealPackage.ExportEntry> entries;
+        private final PrintStream log;
+
+        ExportPackageTask(UnrealPackage up, PackageFile source, List<UnrealPackage.ExportEntry> entries, PrintStream log) {
+            this.up = up;
+            this.source = source;
+            this.entries = entries;
+            this.log = log;
+        }
+
+        @Override
+        protected Integer compute() {
+            List<ExportEntryTask> tasks = new ArrayList<>(entries.size());
+            for (UnrealPackage.ExportEntry entry : entries)
+                tasks.add(new ExportEntryTask(up, source, entry));
+            invokeAll(tasks);
+
+            int failures = 0;
+            synchronized (log) {
+                for (ExportEntryTask task : tasks) {
+                    if (task.failed)
+                        failures++;
+                    log.println(task.entry.getObjectFullName() + " " + task.result);
+                }
+            }
+            return failures;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class ExportEntryTask extends RecursiveAction {
+        private final UnrealPackage up;
+        private final PackageFile source;
+        private final UnrealPackage.ExportEntry entry;
+        private String result;
+        private boolean failed;
+
+        ExportEntryTask(UnrealPackage up, PackageFile source, UnrealPackage.ExportEntry entry) {
+            this.up = up;
+            this.source = source;
+            this.entry = entry;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                byte[] raw = null;
+                MipMapInfo info;
+                synchronized (up) {
+                    if (source != null) {
+                        info = MipMapInfo.getInfo(entry, source.in);
+                        if (!DDS.isSupported(info.format))
+                            raw = entry.getObjectRawData();
+                    } else {
+                        raw = entry.getObjectRawData();
+                        info = MipMapInfo.getInfo(entry, raw);
+                    }
+                }
+                result = raw == null ?
+                        L2ToolCmd.transfer(entry, source.channel, info) :
+                        L2ToolCmd.export(entry, raw, info);
+                if (result == null) {
+                    result = "not supported";
+                } else {
+                    textureCount.increment();
+                    byteCount.add(raw != null ? raw.length : entry.getSize());
+                }
+            } catch (Exception e) {
+                result = "error";
+                failed = true;
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class ConvertFileTask extends RecursiveTask<Integer> {
+        private final File file;
+        private final File outDir;
+        private final PrintStream log;
+
+        ConvertFileTask(File file, File outDir, PrintStream log) {
+            this.file = file;
+            this.outDir = outDir;
+            this.log = log;
+        }
+
+        @Override
+        protected Integer compute() {
+            File dst = new File(outDir, file.getName());
+            if (dst.getAbsolutePath().equals(file.getAbsolutePath()))
+                dst = new File(outDir, "new-" + file.getName());
+
+            ByteArrayOutputStream changes = new ByteArrayOutputStream();
+            try (UnrealPackage up = new UnrealPackage(file, true)) {
+                ConvertTool.save(up, dst, new PrintStream(changes, true));
+                textureCount.add(up.getExportTable()
+                        .stream()
+                        .filter(entry -> ConvertTool.isTexture(entry.getObjectClass().getObjectFullName()))
+                        .count());
+                byteCount.add(file.length());
+                synchronized (log) {
+                    log.print(changes.toString());
+                    log.println(file + " -> " + dst);
+                }
+                return 0;
+            } catch (Exception e) {
+                synchronized (log) {
+                    log.println(file + " " + e.getClass().getSimpleName() + ": " + e.getMessage());
+                }
+                return 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Coalesces updates posted to the FX thread by background work.
+ */
+final class FxUpdates {
+    private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(33);
+    private static final long SLICE = TimeUnit.MILLISECONDS.toNanos(8);
+    private static final int BATCH = 512;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "FxUpdates");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FxUpdates() {
+    }
+
+    /**
+     * @param target called on the FX thread with the latest value, at most
+     *               about 30 times a second, the last value always gets
+     *               through
+     * @return consumer that can be called from any thread
+     */
+    static DoubleConsumer progress(DoubleConsumer target) {
+        return new Progress(target);
+    }
+
+    /**
+     * Appends items to the list on the FX thread in batches, yielding to
+     * other events every few milliseconds. Nothing is added once
+     * {@code cancelled} returns true, {@code done} is run after the last
+     * batch only if not cancelled.
+     */
+    static <T> void addAll(ObservableList<T> list, List<? extends T> items, BooleanSupplier cancelled, Runnable done) {
+        Platform.runLater(new Runnable() {
+            private int next;
+
+            @Override
+            public void run() {
+                if (cancelled.getAsBoolean())
+                    return;
+
+                long start = System.nanoTime();
+                while (next < items.size() && System.nanoTime() - start < SLICE) {
+                    int end = Math.min(next + BATCH, items.size());
+                    list.addAll(items.subList(next, end));
+                    next = end;
+                }
+
+                if (next < items.size())
+                    Platform.runLater(this);
+                else if (done != null)
+                    done.run();
+            }
+        });
+    }
+
+    private static final class Progress implements DoubleConsumer {
+        private final DoubleConsumer target;
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private volatile double latest;
+        private volatile long last = System.nanoTime() - PROGRESS_INTERVAL;
+
+        Progress(DoubleConsumer target) {
+            this.target = target;
+        }
+
+        /**
+         * Posts the value right away if the interval has passed, otherwise
+         * schedules a trailing update at the end of the interval. Values
+         * accepted while an update is pending are taken by that update.
+         */
+        @Override
+        public void accept(double value) {
+            latest = value;
+            if (pending.compareAndSet(false, true)) {
+                long delay = PROGRESS_INTERVAL - (System.nanoTime() - last);
+                if (delay <= 0)
+                    post();
+                else
+                    TIMER.schedule(this::post, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void post() {
+            Platform.runLater(() -> {
+                last = System.nanoTime();
+                pending.set(false);
+                target.accept(latest);
+            });
+        }
+    }
+}
@@ -106,7 +106,7 @@ public class L2Tool extends Application {
     }
 
     public static void main(String[] args) {
-        if (args.length > 0 && (args[0].equals("-export") || args[0].equals("-convert"))) {
+        if (args.length > 0 && (args[0].equals("-export") || args[0].equals("-convert") || args[0].equals("-list"))) {
             L2ToolCmd.main(args);
         } else {
             launch(args);
@@ -27,13 +27,23 @@ import acmi.l2.clientmod.texconv.ConvertTool;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Optional;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class L2ToolCmd {
+    private static final Pattern PACKAGE_FILE = Pattern.compile(".+\\.u[tg]x", Pattern.CASE_INSENSITIVE);
+
+    private static int threads = Runtime.getRuntime().availableProcessors();
+    private static String out = ".";
+
     private static File createParents(File f) throws IOException {
         File parent = f.getParentFile();
         if (!parent.exists()) {
-            if (!parent.mkdirs())
+            if (!parent.mkdirs() && !parent.isDirectory())
                 throw new IOException("Couldn't create folder: " + parent);
         }
 
@@ -51,38 +61,149 @@ public class L2ToolCmd {
     private static void export(UnrealPackage.ExportEntry entry) {
         try {
             byte[] raw = entry.getObjectRawData();
-            MipMapInfo info = MipMapInfo.getInfo(entry);
-            switch (info.format) {
-                case DXT1:
-                case DXT3:
-                case DXT5:
-                    DDS.createFromData(raw, info).write(createParents(new File(fixPath(entry.getObjectFullName()) + ".dds")));
-                    System.out.println(" " + info.format);
-                    break;
-                case RGBA8:
-                    TGA.createFromData(raw, info).write(createParents(new File(fixPath(entry.getObjectFullName()) + ".tga")));
-                    System.out.println(" " + info.format);
-                    break;
-                case P8:
-                    P8.createFromData(raw, info).write(createParents(new File(fixPath(entry.getObjectFullName()) + ".bmp")));
-                    System.out.println(" " + info.format);
-                    break;
-                case G16:
-                    G16.createFromData(raw, info).write(createParents(new File(fixPath(entry.getObjectFullName()) + ".bmp")));
-                    System.out.println(" " + info.format);
-                    break;
-                default:
-                    System.out.println(" not supported");
-            }
+            MipMapInfo info = MipMapInfo.getInfo(entry, raw);
+            String result = export(entry, raw, info);
+            System.out.println(" " + (result != null ? result : "not supported"));
         } catch (Exception e1) {
             System.out.println(" error");
         }
     }
 
-    public static void main(String[] args) {
-        switch (args[0]) {
+    static String export(UnrealPackage.ExportEntry entry, byte[] raw, MipMapInfo info) throws IOException {
+        Img img;
+        String ext;
+        switch (info.format) {
+            case DXT1:
+            case DXT3:
+            case DXT5:
+                img = DDS.createFromData(raw, info);
+                ext = ".dds";
+                break;
+            case RGBA8:
+                img = TGA.createFromData(raw, info);
+                ext = ".tga";
+                break;
+            case P8:
+                img = P8.createFromData(raw, info);
+                ext = ".bmp";
+                break;
+            case G16:
+                img = G16.createFromData(raw, info);
+                ext = ".bmp";
+                break;
+            default:
+                return null;
+        }
+        try {
+            img.write(createParents(new File(fixPath(entry.getObjectFullName()) + ext)));
+        } finally {
+            img.dispose();
+        }
+        return info.format.toString();
+    }
+
+    /**
+     * Exports DXT texture of a plain package without decoding.
+     */
+    static String transfer(UnrealPackage.ExportEntry entry, FileChannel src, MipMapInfo info) throws IOException {
+        DDS.transfer(src, entry.getOffset(), info, createParents(new File(fixPath(entry.getObjectFullName()) + ".dds")));
+        return info.format.toString();
+    }
+
+    private static void list(File file) throws IOException {
+        try (UnrealPackage up = new UnrealPackage(file, true)) {
+            for (MipMapInfo info : TextureIndex.get(up, file, null))
+                System.out.println(info.name + "\t" + info.format + "\t" +
+                        info.width + "x" + info.height + "\t" + info.offsets.length);
+        }
+    }
+
+    private static String[] parseOptions(String[] args) {
+        List<String> list = new ArrayList<>(Arrays.asList(args));
+        int i = list.indexOf("-threads");
+        if (i >= 0) {
+            String value = i + 1 < list.size() ? list.remove(i + 1) : null;
+            list.remove(i);
+            try {
+                threads = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                threads = 0;
+            }
+            if (threads < 1) {
+                System.err.println("-threads expects a positive number, got " + value);
+                System.exit(0);
+            }
+        }
+        i = list.indexOf("-out");
+        if (i >= 0) {
+            if (i + 1 >= list.size()) {
+                System.err.println("-out expects a directory");
+                System.exit(0);
+            }
+            out = list.remove(i + 1);
+            list.remove(i);
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    private static boolean isBatch(String path) {
+        return isGlob(path) || new File(path).isDirectory();
+    }
+
+    private static boolean isGlob(String path) {
+        return indexOfGlob(path) != -1;
+    }
+
+    private static int indexOfGlob(String path) {
+        for (int i = 0; i < path.length(); i++)
+            if ("*?[{".indexOf(path.charAt(i)) != -1)
+                return i;
+        return -1;
+    }
+
+    static List<File> findPackages(String... patterns) throws IOException {
+        Set<File> packages = new LinkedHashSet<>();
+        for (String pattern : patterns) {
+            File file = new File(pattern);
+            if (file.isDirectory()) {
+                File[] files = file.listFiles(f -> f.isFile() && PACKAGE_FILE.matcher(f.getName()).matches());
+                if (files != null) {
+                    Arrays.sort(files);
+                    packages.addAll(Arrays.asList(files));
+                }
+            } else if (isGlob(pattern)) {
+                String normalized = pattern.replace(File.separatorChar, '/');
+                int baseEnd = normalized.lastIndexOf('/', indexOfGlob(normalized));
+                Path base = Paths.get(baseEnd < 0 ? "." : normalized.substring(0, baseEnd + 1));
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized.substring(baseEnd + 1));
+                try (Stream<Path> paths = Files.walk(base)) {
+                    paths.filter(Files::isRegularFile)
+                            .filter(path -> matcher.matches(base.relativize(path)))
+                            .sorted()
+                            .forEach(path -> packages.add(path.normalize().toFile()));
+                }
+            } else {
+                packages.add(file);
+            }
+        }
+        return new ArrayList<>(packages);
+    }
+
+    public static void main(String[] argv) {
+        String[] args = parseOptions(argv);
+        switch (args.length > 0 ? args[0] : "") {
             case "-export": {
-                if (args.length > 1) {
+                if (args.length > 1 && isBatch(args[1])) {
+                    try (ExportEngine engine = new ExportEngine(threads)) {
+                        List<File> packages = findPackages(Arrays.copyOfRange(args, 1, args.length));
+                        int failures = engine.exportAll(packages, System.out);
+                        engine.printSummary(System.out);
+                        if (failures > 0)
+                            System.err.println(failures + " failed");
+                    } catch (Exception e) {
+                        System.err.println(e.getClass().getSimpleName() + ": " + e.getMessage());
+                    }
+                } else if (args.length > 1) {
                     File src = new File(args[1]);
                     try (UnrealPackage up = new UnrealPackage(src, true)) {
                         if (args.length > 2) {
@@ -108,13 +229,15 @@ public class L2ToolCmd {
                                     System.exit(0);
                                 }
 
-                            up.getExportTable()
+                            List<UnrealPackage.ExportEntry> textures = up.getExportTable()
                                     .stream()
                                     .filter(entry -> ConvertTool.isTexture(entry.getObjectClass().getObjectFullName()))
-                                    .forEach(entry -> {
-                                        System.out.print(entry.getObjectFullName());
-                                        export(entry);
-                                    });
+                                    .collect(Collectors.toList());
+                            try (ExportEngine engine = new ExportEngine(threads)) {
+                                int failures = engine.export(up, src, textures, System.out);
+                                if (failures > 0)
+                                    System.err.println(failures + " of " + textures.size() + " textures failed");
+                            }
                         }
                     } catch (Exception e) {
                         System.err.println(e.getClass().getSimpleName() + ": " + e.getMessage());
@@ -125,7 +248,22 @@ public class L2ToolCmd {
                 System.exit(0);
             }
             case "-convert": {
-                if (args.length > 1) {
+                if (args.length > 1 && isBatch(args[1])) {
+                    try (ExportEngine engine = new ExportEngine(threads)) {
+                        List<File> packages = findPackages(Arrays.copyOfRange(args, 1, args.length));
+                        File outDir = new File(out);
+                        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+                            System.err.println("Couldn't create out dir");
+                            System.exit(0);
+                        }
+                        int failures = engine.convertAll(packages, outDir, System.out);
+                        engine.printSummary(System.out);
+                        if (failures > 0)
+                            System.err.println(failures + " failed");
+                    } catch (Exception e) {
+                        System.err.println(e.getClass().getSimpleName() + ": " + e.getMessage());
+                    }
+                } else if (args.length > 1) {
                     File src = new File(args[1]);
                     try (UnrealPackage up = new UnrealPackage(src, true)) {
                         File dst;
@@ -145,10 +283,30 @@ public class L2ToolCmd {
                 }
                 System.exit(0);
             }
+            case "-list": {
+                if (args.length > 1) {
+                    try {
+                        List<File> packages = findPackages(Arrays.copyOfRange(args, 1, args.length));
+                        for (File file : packages) {
+                            if (packages.size() > 1)
+                                System.out.println(file.getPath());
+                            list(file);
+                        }
+                    } catch (Exception e) {
+                        System.err.println(e.getClass().getSimpleName() + ": " + e.getMessage());
+                    }
+                } else {
+                    System.err.println("Input utx not specified");
+                }
+                System.exit(0);
+            }
             default: {
                 System.out.println("Commands:");
-                System.out.println("\t-export utx <texture_name>");
+                System.out.println("\t-export utx <texture_name> [-threads n]");
+                System.out.println("\t-export dir|glob... [-threads n]");
+                System.out.println("\t-list utx|dir|glob...");
                 System.out.println("\t-convert utx <new_utx>");
+                System.out.println("\t-convert dir|glob... [-out dir] [-threads n]");
                 System.exit(0);
             }
         }
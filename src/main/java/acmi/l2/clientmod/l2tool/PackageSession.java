@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool;
+
+import acmi.l2.clientmod.io.UnrealPackage;
+
+import java.io.File;
+
+/**
+ * Package selected in the GUI, kept open read only so its tables are
+ * parsed once. The package is reopened when size or modification time of
+ * the file change.
+ * <p>
+ * The lock is only held to check or reopen the package and to read one
+ * export, UnrealPackage is not thread safe. Long jobs like scans and
+ * conversions take their own package from {@link #openPackage()}.
+ */
+class PackageSession implements AutoCloseable {
+    interface Action<T> {
+        T apply(UnrealPackage up) throws Exception;
+    }
+
+    private final File file;
+    private UnrealPackage up;
+    private long length;
+    private long lastModified;
+    private boolean closed;
+
+    PackageSession(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens the shared package if it is not open or the file has changed.
+     */
+    synchronized void check() {
+        if (closed)
+            throw new IllegalStateException("Package " + file + " is closed");
+        if (up != null && (file.length() != length || file.lastModified() != lastModified))
+            closeShared();
+        if (up == null) {
+            length = file.length();
+            lastModified = file.lastModified();
+            up = new UnrealPackage(file, true);
+        }
+    }
+
+    synchronized byte[] readExport(int exportIndex) {
+        check();
+        return up.getExportTable().get(exportIndex).getObjectRawData();
+    }
+
+    /**
+     * @return new read only package, not shared, the caller closes it
+     */
+    UnrealPackage openPackage() {
+        return new UnrealPackage(file, true);
+    }
+
+    /**
+     * Opens the file for writing, the shared read only package is closed
+     * first and reopened by the next read. Must not be called on the FX
+     * thread, readers wait for the write.
+     */
+    synchronized <T> T write(Action<T> action) throws Exception {
+        if (closed)
+            throw new IllegalStateException("Package " + file + " is closed");
+        closeShared();
+        try (UnrealPackage rw = new UnrealPackage(file, false)) {
+            return action.apply(rw);
+        }
+    }
+
+    /**
+     * Closes the shared package, reads fail afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeShared();
+    }
+
+    private void closeShared() {
+        if (up != null) {
+            up.close();
+            up = null;
+        }
+    }
+}
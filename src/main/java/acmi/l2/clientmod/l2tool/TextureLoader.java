@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool;
+
+import acmi.l2.clientmod.l2tool.img.*;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Loads textures for the viewer.
+ * <p>
+ * Textures are kept in a LRU cache bounded by their data size, the
+ * neighbours of the selected texture are loaded ahead. Each load decodes
+ * the mip level the viewer is going to show. Loads of textures
+ * that are neither selected nor neighbours any more are cancelled, a
+ * cancelled load stops before reading data or, once decoding started,
+ * after the stripe being decoded.
+ * <p>
+ * Textures that leave the cache are disposed, returning their decoded
+ * levels to the pool, unless a view still holds them.
+ */
+class TextureLoader {
+    private static final int THREADS = 2;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread thread = new Thread(r, "TextureLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Cache cache = new Cache(Math.min(Runtime.getRuntime().maxMemory() / 8, 256L << 20), this::dispose);
+    private final Map<Integer, CompletableFuture<Img>> pending = new HashMap<>();
+    private final Map<Img, Integer> held = new IdentityHashMap<>();
+    private PackageSession session;
+
+    /**
+     * Drops cached textures and pending loads of the previous package.
+     */
+    synchronized void setSession(PackageSession session) {
+        this.session = session;
+        pending.values().forEach(future -> future.cancel(false));
+        pending.clear();
+        cache.clear();
+    }
+
+    /**
+     * Drops cached texture, used after it was replaced.
+     */
+    synchronized void invalidate(MipMapInfo info) {
+        CompletableFuture<Img> future = pending.remove(info.exportIndex);
+        if (future != null)
+            future.cancel(false);
+        cache.remove(info.exportIndex);
+    }
+
+    /**
+     * Keeps the texture from being disposed once it leaves the cache, until
+     * it is released as many times as it was held.
+     */
+    synchronized void hold(Img img) {
+        if (img != null)
+            held.merge(img, 1, Integer::sum);
+    }
+
+    synchronized void release(Img img) {
+        if (img == null)
+            return;
+
+        held.computeIfPresent(img, (key, count) -> count > 1 ? count - 1 : null);
+        if (!held.containsKey(img) && !cache.containsValue(img))
+            dispose(img);
+    }
+
+    /**
+     * Disposes the texture on a loader thread if it is neither held nor
+     * cached by then.
+     */
+    private void dispose(Img img) {
+        executor.execute(() -> {
+            // getMipMap locks the texture too, a view can't take a level
+            // between the check and the release
+            synchronized (img) {
+                synchronized (this) {
+                    if (held.containsKey(img) || cache.containsValue(img))
+                        return;
+                }
+                img.dispose();
+            }
+        });
+    }
+
+    /**
+     * @param info       selected texture
+     * @param neighbours textures to load ahead, in order of priority
+     * @param level      mip level to decode, clamped to the levels of a texture
+     * @return the selected texture, completes immediately if cached
+     */
+    synchronized CompletableFuture<Img> select(MipMapInfo info, List<MipMapInfo> neighbours, int level) {
+        Set<Integer> wanted = new HashSet<>();
+        wanted.add(info.exportIndex);
+        for (MipMapInfo neighbour : neighbours)
+            wanted.add(neighbour.exportIndex);
+
+        for (Iterator<Map.Entry<Integer, CompletableFuture<Img>>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, CompletableFuture<Img>> entry = it.next();
+            if (!wanted.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+
+        CompletableFuture<Img> future = load(info, level);
+        for (MipMapInfo neighbour : neighbours)
+            load(neighbour, level);
+        return future;
+    }
+
+    private CompletableFuture<Img> load(MipMapInfo info, int level) {
+        Img img = cache.get(info.exportIndex);
+        if (img != null)
+            return CompletableFuture.completedFuture(img);
+
+        CompletableFuture<Img> future = pending.get(info.exportIndex);
+        if (future != null)
+            return future;
+
+        CompletableFuture<Img> load = new CompletableFuture<>();
+        pending.put(info.exportIndex, load);
+        PackageSession session = this.session;
+        executor.execute(() -> {
+            try {
+                if (load.isDone())
+                    return;
+                byte[] raw = session.readExport(info.exportIndex);
+                if (load.isDone())
+                    return;
+                Img texture = create(raw, info);
+                texture.getMipMap(Math.min(level, texture.getMipMapCount() - 1), load::isCancelled);
+                synchronized (this) {
+                    if (pending.remove(info.exportIndex, load))
+                        cache.put(info.exportIndex, texture);
+                    else
+                        dispose(texture);
+                }
+                load.complete(texture);
+            } catch (Throwable t) {
+                synchronized (this) {
+                    pending.remove(info.exportIndex, load);
+                }
+                load.completeExceptionally(t);
+            }
+        });
+        return load;
+    }
+
+    static Img create(byte[] raw, MipMapInfo info) throws Exception {
+        switch (info.format) {
+            case RGBA8:
+                return TGA.createFromData(raw, info);
+            case DXT1:
+            case DXT3:
+            case DXT5:
+                return DDS.createFromData(raw, info);
+            case G16:
+                return G16.createFromData(raw, info);
+            case P8:
+                return P8.createFromData(raw, info);
+            default:
+                throw new Exception("Unsupported format " + info.format);
+        }
+    }
+
+    /**
+     * Passes every texture it drops to {@code evicted}.
+     */
+    @SuppressWarnings("serial")
+    private static class Cache extends LinkedHashMap<Integer, Img> {
+        private final long capacity;
+        private final Consumer<Img> evicted;
+        private long size;
+
+        Cache(long capacity, Consumer<Img> evicted) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evicted = evicted;
+        }
+
+        @Override
+        public Img put(Integer key, Img value) {
+            Img old = super.put(key, value);
+            if (old != null) {
+                size -= sizeOf(old);
+                if (old != value)
+                    evicted.accept(old);
+            }
+            size += sizeOf(value);
+
+            for (Iterator<Img> it = values().iterator(); size > capacity && it.hasNext(); ) {
+                Img eldest = it.next();
+                if (eldest == value)
+                    break;
+                size -= sizeOf(eldest);
+                it.remove();
+                evicted.accept(eldest);
+            }
+            return old;
+        }
+
+        @Override
+        public Img remove(Object key) {
+            Img old = super.remove(key);
+            if (old != null) {
+                size -= sizeOf(old);
+                evicted.accept(old);
+            }
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            List<Img> values = new ArrayList<>(values());
+            super.clear();
+            size = 0;
+            values.forEach(evicted);
+        }
+
+        /**
+         * Raw data plus 32 bit pixels of all levels, an upper bound of what
+         * the texture holds once its levels are decoded.
+         */
+        private static long sizeOf(Img img) {
+            long size = (long) img.getWidth() * img.getHeight() * 16 / 3;
+            for (byte[] data : img.getData())
+                size += data.length;
+            return size;
+        }
+    }
+}
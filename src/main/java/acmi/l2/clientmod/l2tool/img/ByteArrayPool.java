@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays keyed by exact length. Mip sizes repeat a lot between
+ * textures, so released rasters are handed out again instead of allocating.
+ */
+public class ByteArrayPool {
+    public static final ByteArrayPool DEFAULT = new ByteArrayPool(64 * 1024 * 1024);
+
+    private final long capacity;
+    private final AtomicLong pooled = new AtomicLong();
+    private final Map<Integer, Queue<byte[]>> arrays = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity max total bytes kept in the pool
+     */
+    public ByteArrayPool(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return array of given length, contents are undefined
+     */
+    public byte[] acquire(int length) {
+        Queue<byte[]> queue = arrays.get(length);
+        byte[] array = queue != null ? queue.poll() : null;
+        if (array == null)
+            return new byte[length];
+
+        pooled.addAndGet(-length);
+        return array;
+    }
+
+    public void release(byte[] array) {
+        if (array == null || array.length == 0)
+            return;
+
+        if (pooled.addAndGet(array.length) > capacity) {
+            pooled.addAndGet(-array.length);
+            return;
+        }
+        arrays.computeIfAbsent(array.length, length -> new ConcurrentLinkedQueue<>()).offer(array);
+    }
+}
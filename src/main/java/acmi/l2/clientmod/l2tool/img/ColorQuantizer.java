@@ -0,0 +1,429 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * Median cut palette quantizer.
+ * <p>
+ * Pixels are counted into a 4-5-5-5 bit ARGB histogram in parallel, boxes
+ * of histogram cells are split at the weighted median of the channel with
+ * the largest error until the palette is full, then palette colors are
+ * moved to the mean of the pixels they got. Images with few enough
+ * colors get them as is.
+ * <p>
+ * Pixel mapping looks up exact palette colors first, other pixels go
+ * through a per histogram cell cache of the nearest palette index.
+ */
+public final class ColorQuantizer {
+    private static final int CELLS = 1 << 19;
+    private static final int CHUNK = 1 << 16;
+
+    private ColorQuantizer() {
+    }
+
+    private static int cell(int argb) {
+        return (argb >>> 28) << 15 | (argb >> 19 & 0x1f) << 10 | (argb >> 11 & 0x1f) << 5 | (argb >> 3 & 0x1f);
+    }
+
+    private static int cellColor(int cell) {
+        int a = cell >> 15 & 0xf, r = cell >> 10 & 0x1f, g = cell >> 5 & 0x1f, b = cell & 0x1f;
+        return (a * 17) << 24 | (r << 3 | r >> 2) << 16 | (g << 3 | g >> 2) << 8 | (b << 3 | b >> 2);
+    }
+
+    /**
+     * @return palette of {@code maxColors} entries, unused ones repeat the first color
+     */
+    public static Palette quantize(int[] argb, int maxColors) {
+        Palette palette = new Palette(maxColors);
+        int[] distinct = distinctColors(argb, maxColors);
+        if (distinct != null) {
+            System.arraycopy(distinct, 0, palette.colors, 0, distinct.length);
+            fillUnused(palette, distinct.length);
+            return palette;
+        }
+
+        int[] histogram = IntStream.range(0, (argb.length + CHUNK - 1) / CHUNK).parallel()
+                .mapToObj(chunk -> {
+                    int[] counts = new int[CELLS];
+                    for (int i = chunk * CHUNK; i < Math.min(argb.length, (chunk + 1) * CHUNK); i++)
+                        counts[cell(argb[i])]++;
+                    return counts;
+                })
+                .reduce((a, b) -> {
+                    for (int i = 0; i < CELLS; i++)
+                        a[i] += b[i];
+                    return a;
+                })
+                .orElse(new int[CELLS]);
+
+        int n = 0;
+        for (int count : histogram)
+            if (count > 0)
+                n++;
+        int[] cells = new int[n];
+        int[] counts = new int[n];
+        int[][] channels = new int[4][n];
+        for (int i = 0, j = 0; i < CELLS; i++)
+            if (histogram[i] > 0) {
+                int color = cellColor(i);
+                cells[j] = i;
+                counts[j] = histogram[i];
+                for (int c = 0; c < 4; c++)
+                    channels[c][j] = color >>> (24 - c * 8) & 0xff;
+                j++;
+            }
+
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        int[] from = new int[maxColors];
+        int[] to = new int[maxColors];
+        double[] error = new double[maxColors];
+        int boxes = 1;
+        to[0] = n;
+        error[0] = error(order, 0, n, counts, channels);
+        while (boxes < maxColors) {
+            int box = -1;
+            for (int i = 0; i < boxes; i++)
+                if (to[i] - from[i] > 1 && error[i] > 0 && (box < 0 || error[i] > error[box]))
+                    box = i;
+            if (box < 0)
+                break;
+
+            int split = split(order, from[box], to[box], counts, channels);
+            from[boxes] = split;
+            to[boxes] = to[box];
+            to[box] = split;
+            error[box] = error(order, from[box], to[box], counts, channels);
+            error[boxes] = error(order, from[boxes], to[boxes], counts, channels);
+            boxes++;
+        }
+
+        for (int i = 0; i < boxes; i++) {
+            long total = 0;
+            long[] sums = new long[4];
+            for (int j = from[i]; j < to[i]; j++) {
+                int k = order[j];
+                total += counts[k];
+                for (int c = 0; c < 4; c++)
+                    sums[c] += (long) channels[c][k] * counts[k];
+            }
+            int color = 0;
+            for (int c = 0; c < 4; c++)
+                color |= (int) ((sums[c] + total / 2) / total) << (24 - c * 8);
+            palette.colors[i] = color;
+        }
+
+        refine(argb, palette, boxes);
+        fillUnused(palette, boxes);
+        return palette;
+    }
+
+    private static void fillUnused(Palette palette, int used) {
+        if (used > 0)
+            Arrays.fill(palette.colors, used, palette.colors.length, palette.colors[0]);
+    }
+
+    /**
+     * @return distinct colors of the image or null if there are more than {@code max}
+     */
+    private static int[] distinctColors(int[] argb, int max) {
+        int mask = Integer.highestOneBit(max * 4) * 2 - 1;
+        int[] table = new int[mask + 1];
+        boolean[] occupied = new boolean[mask + 1];
+        int[] colors = new int[max];
+        int count = 0;
+        for (int pixel : argb) {
+            int slot = hash(pixel) & mask;
+            while (occupied[slot] && table[slot] != pixel)
+                slot = (slot + 1) & mask;
+            if (!occupied[slot]) {
+                if (count == max)
+                    return null;
+                occupied[slot] = true;
+                table[slot] = pixel;
+                colors[count++] = pixel;
+            }
+        }
+        return Arrays.copyOf(colors, count);
+    }
+
+    private static int hash(int color) {
+        return (color * 0x9E3779B9) >>> 12;
+    }
+
+    private static double error(int[] order, int from, int to, int[] counts, int[][] channels) {
+        double error = 0;
+        for (int c = 0; c < 4; c++)
+            error = Math.max(error, channelError(order, from, to, counts, channels[c]));
+        return error;
+    }
+
+    private static double channelError(int[] order, int from, int to, int[] counts, int[] channel) {
+        double total = 0, sum = 0, squares = 0;
+        for (int j = from; j < to; j++) {
+            int k = order[j];
+            total += counts[k];
+            sum += (double) channel[k] * counts[k];
+            squares += (double) channel[k] * channel[k] * counts[k];
+        }
+        return squares - sum * sum / total;
+    }
+
+    /**
+     * Sorts the box by its worst channel and finds the weighted median.
+     *
+     * @return index of the first entry of the second half
+     */
+    private static int split(int[] order, int from, int to, int[] counts, int[][] channels) {
+        int[] channel = channels[0];
+        double worst = -1;
+        for (int[] c : channels) {
+            double error = channelError(order, from, to, counts, c);
+            if (error > worst) {
+                worst = error;
+                channel = c;
+            }
+        }
+
+        int[] start = new int[257];
+        long total = 0;
+        for (int j = from; j < to; j++) {
+            start[channel[order[j]] + 1]++;
+            total += counts[order[j]];
+        }
+        for (int v = 0; v < 256; v++)
+            start[v + 1] += start[v];
+        int[] sorted = new int[to - from];
+        for (int j = from; j < to; j++)
+            sorted[start[channel[order[j]]]++] = order[j];
+        System.arraycopy(sorted, 0, order, from, sorted.length);
+
+        long half = 0;
+        for (int j = from; j < to - 1; j++) {
+            half += counts[order[j]];
+            if (half * 2 >= total)
+                return j + 1;
+        }
+        return to - 1;
+    }
+
+    /**
+     * One k-means step: moves every color to the mean of the pixels mapped to it.
+     */
+    private static void refine(int[] argb, Palette palette, int colors) {
+        Mapper mapper = new Mapper(Arrays.copyOf(palette.colors, colors));
+        long[] sums = IntStream.range(0, (argb.length + CHUNK - 1) / CHUNK).parallel()
+                .mapToObj(chunk -> {
+                    long[] s = new long[colors * 5];
+                    for (int i = chunk * CHUNK; i < Math.min(argb.length, (chunk + 1) * CHUNK); i++) {
+                        int pixel = argb[i];
+                        int index = mapper.nearest(pixel);
+                        s[index * 5]++;
+                        for (int c = 0; c < 4; c++)
+                            s[index * 5 + 1 + c] += pixel >>> (24 - c * 8) & 0xff;
+                    }
+                    return s;
+                })
+                .reduce((a, b) -> {
+                    for (int i = 0; i < a.length; i++)
+                        a[i] += b[i];
+                    return a;
+                })
+                .orElse(new long[colors * 5]);
+
+        for (int i = 0; i < colors; i++) {
+            long total = sums[i * 5];
+            if (total == 0)
+                continue;
+            int color = 0;
+            for (int c = 0; c < 4; c++)
+                color |= (int) ((sums[i * 5 + 1 + c] + total / 2) / total) << (24 - c * 8);
+            palette.colors[i] = color;
+        }
+    }
+
+    /**
+     * Nearest palette index lookup, build one per palette and reuse it for
+     * all images mapped to that palette. The cell cache may be filled by
+     * several threads at once, they store the same value.
+     */
+    public static final class Mapper {
+        private final int[] colors;
+        private final int[] cache = new int[CELLS];
+        private final int mask;
+        private final int[] table;
+        private final int[] tableIndex;
+        private final boolean[] occupied;
+
+        public Mapper(Palette palette) {
+            this(palette.colors);
+        }
+
+        Mapper(int[] colors) {
+            this.colors = colors;
+            Arrays.fill(cache, -1);
+            mask = Integer.highestOneBit(Math.max(colors.length, 1) * 4) * 2 - 1;
+            table = new int[mask + 1];
+            tableIndex = new int[mask + 1];
+            occupied = new boolean[mask + 1];
+            for (int i = 0; i < colors.length; i++) {
+                int slot = hash(colors[i]) & mask;
+                while (occupied[slot] && table[slot] != colors[i])
+                    slot = (slot + 1) & mask;
+                if (!occupied[slot]) {
+                    occupied[slot] = true;
+                    table[slot] = colors[i];
+                    tableIndex[slot] = i;
+                }
+            }
+        }
+
+        int nearest(int pixel) {
+            for (int slot = hash(pixel) & mask; occupied[slot]; slot = (slot + 1) & mask)
+                if (table[slot] == pixel)
+                    return tableIndex[slot];
+
+            int cell = cell(pixel);
+            int index = cache[cell];
+            if (index < 0)
+                cache[cell] = index = ColorQuantizer.nearest(cellColor(cell), colors);
+            return index;
+        }
+
+        /**
+         * @return palette index of every pixel
+         */
+        public byte[] map(int[] argb) {
+            return map(argb, () -> false);
+        }
+
+        /**
+         * Same as {@link #map(int[])}, {@code cancelled} is checked before
+         * each chunk of pixels.
+         *
+         * @throws CancellationException if {@code cancelled} returned true
+         */
+        public byte[] map(int[] argb, BooleanSupplier cancelled) {
+            byte[] indices = new byte[argb.length];
+            IntStream.range(0, (argb.length + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+                if (cancelled.getAsBoolean())
+                    return;
+                for (int i = chunk * CHUNK; i < Math.min(argb.length, (chunk + 1) * CHUNK); i++)
+                    indices[i] = (byte) nearest(argb[i]);
+            });
+            if (cancelled.getAsBoolean())
+                throw new CancellationException();
+            return indices;
+        }
+
+        /**
+         * Same as {@link #map(int[])} with Floyd-Steinberg error diffusion
+         * of the color channels, alpha is mapped as is.
+         */
+        public byte[] dither(int[] argb, int width, int height) {
+            return dither(argb, width, height, () -> false);
+        }
+
+        /**
+         * Same as {@link #dither(int[], int, int)}, {@code cancelled} is
+         * checked before each row.
+         *
+         * @throws CancellationException if {@code cancelled} returned true
+         */
+        public byte[] dither(int[] argb, int width, int height, BooleanSupplier cancelled) {
+            byte[] indices = new byte[argb.length];
+            int[] errors = new int[(width + 2) * 3];
+            int[] next = new int[(width + 2) * 3];
+            for (int y = 0; y < height; y++) {
+                if (cancelled.getAsBoolean())
+                    throw new CancellationException();
+                for (int x = 0; x < width; x++) {
+                    int pixel = argb[y * width + x];
+                    int e = (x + 1) * 3;
+                    int r = clamp((pixel >> 16 & 0xff) + errors[e] / 16);
+                    int g = clamp((pixel >> 8 & 0xff) + errors[e + 1] / 16);
+                    int b = clamp((pixel & 0xff) + errors[e + 2] / 16);
+                    int index = nearest(pixel & 0xff000000 | r << 16 | g << 8 | b);
+                    indices[y * width + x] = (byte) index;
+
+                    int color = colors[index];
+                    diffuse(r - (color >> 16 & 0xff), e, errors, next);
+                    diffuse(g - (color >> 8 & 0xff), e + 1, errors, next);
+                    diffuse(b - (color & 0xff), e + 2, errors, next);
+                }
+                int[] t = errors;
+                errors = next;
+                next = t;
+                Arrays.fill(next, 0);
+            }
+            return indices;
+        }
+    }
+
+    private static int nearest(int pixel, int[] colors) {
+        int best = 0, bestDistance = Integer.MAX_VALUE;
+        for (int j = 0; j < colors.length && bestDistance > 0; j++) {
+            int a = (pixel >>> 24) - (colors[j] >>> 24);
+            int r = (pixel >> 16 & 0xff) - (colors[j] >> 16 & 0xff);
+            int g = (pixel >> 8 & 0xff) - (colors[j] >> 8 & 0xff);
+            int b = (pixel & 0xff) - (colors[j] & 0xff);
+            int distance = a * a + r * r + g * g + b * b;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = j;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return palette index of every pixel
+     */
+    public static byte[] map(int[] argb, Palette palette) {
+        return new Mapper(palette).map(argb);
+    }
+
+    /**
+     * Same as {@link #map(int[], Palette)} with Floyd-Steinberg error
+     * diffusion of the color channels, alpha is mapped as is.
+     */
+    public static byte[] dither(int[] argb, int width, int height, Palette palette) {
+        return new Mapper(palette).dither(argb, width, height);
+    }
+
+    private static void diffuse(int error, int i, int[] row, int[] next) {
+        row[i + 3] += error * 7;
+        next[i - 3] += error * 3;
+        next[i] += error * 5;
+        next[i + 3] += error;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -21,70 +21,117 @@
  */
 package acmi.l2.clientmod.l2tool.img;
 
-import gr.zdimensions.jsquish.Squish;
-
-import java.awt.image.BufferedImage;
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 
 public class DDS extends Img {
+    private static final ColorModel ABGR = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+            new int[]{8, 8, 8, 8}, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+
     private DDS() {
     }
 
     public static acmi.l2.clientmod.l2tool.img.DDS createFromData(byte[] data, MipMapInfo info) throws IOException {
         acmi.l2.clientmod.l2tool.img.DDS dds = new acmi.l2.clientmod.l2tool.img.DDS();
+        checkFormat(info.format);
         dds.setFormat(info.format);
         dds.setName(info.name);
-        dds.setMipMaps(new BufferedImage[info.offsets.length]);
-        dds.setData(new byte[info.offsets.length][]);
-        for (int i = 0; i < info.offsets.length; i++) {
-            int width = Math.max(info.width / (1 << i), 1);
-            int height = Math.max(info.height / (1 << i), 1);
-
-            byte[] compressed = Arrays.copyOfRange(data, info.offsets[i], info.offsets[i] + info.sizes[i]);
-            dds.getData()[i] = compressed;
-            byte[] decompressed = decompress(compressed, width, height, dds.getFormat());
-            BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-            bi.getRaster().setDataElements(0, 0, width, height, decompressed);
-            dds.getMipMaps()[i] = bi;
-        }
+        dds.setSize(info.width, info.height);
+        byte[][] levels = new byte[info.offsets.length][];
+        for (int i = 0; i < levels.length; i++)
+            levels[i] = Arrays.copyOfRange(data, info.offsets[i], info.offsets[i] + info.sizes[i]);
+        dds.setData(levels);
+        return dds;
+    }
+
+    /**
+     * Compresses the image and {@code mipMapCount - 1} levels below it.
+     */
+    public static acmi.l2.clientmod.l2tool.img.DDS createFromImage(String name, BufferedImage image, Format format, int mipMapCount, DXTEncoder.Quality quality) throws IOException {
+        acmi.l2.clientmod.l2tool.img.DDS dds = new acmi.l2.clientmod.l2tool.img.DDS();
+        checkFormat(format);
+        dds.setFormat(format);
+        dds.setName(name);
+        dds.setSize(image.getWidth(), image.getHeight());
+        dds.setData(DXTEncoder.encodeMipMaps(image, mipMapCount, format, quality));
         return dds;
     }
 
     public static acmi.l2.clientmod.l2tool.img.DDS loadFromFile(File file) throws IOException {
-        DDSImage image = DDSImage.read(file);
+        try (ImageSource source = ImageSource.map(file)) {
+            return load(source);
+        }
+    }
+
+    public static acmi.l2.clientmod.l2tool.img.DDS load(ImageSource source) throws IOException {
+        DDSImage image = DDSImage.read(source.getBuffer());
 
         acmi.l2.clientmod.l2tool.img.DDS dds = new acmi.l2.clientmod.l2tool.img.DDS();
         dds.setFormat(getFormat(image.getCompressionFormat()));
-        dds.setName(file.getName().substring(0, file.getName().lastIndexOf('.')));
-        dds.setMipMaps(new BufferedImage[image.getAllMipMaps().length]);
-        dds.setData(new byte[image.getAllMipMaps().length][]);
-        for (int i = 0; i < image.getAllMipMaps().length; i++) {
-            DDSImage.ImageInfo info = image.getMipMap(i);
+        dds.setName(source.getName());
+        dds.setSize(image.getWidth(), image.getHeight());
+        DDSImage.ImageInfo[] infos = image.getAllMipMaps();
+        byte[][] levels = new byte[infos.length][];
+        for (int i = 0; i < infos.length; i++) {
+            levels[i] = new byte[infos[i].getData().limit()];
+            infos[i].getData().get(levels[i]);
+        }
+        dds.setData(levels);
+        return dds;
+    }
 
-            byte[] compressed = new byte[info.getData().limit()];
-            info.getData().get(compressed);
-            dds.getData()[i] = compressed;
+    @Override
+    protected BufferedImage decodeMipMap(int level) {
+        return decode(getData()[level], 0, getMipMapWidth(level), getMipMapHeight(level), getFormat());
+    }
 
-            byte[] decompressed = decompress(compressed, info.getWidth(), info.getHeight(), dds.getFormat());
+    @Override
+    protected BufferedImage decodeMipMap(int level, BooleanSupplier cancelled) {
+        return decode(getData()[level], 0, getMipMapWidth(level), getMipMapHeight(level), getFormat(), cancelled);
+    }
 
-            BufferedImage bi = new BufferedImage(info.getWidth(), info.getHeight(), BufferedImage.TYPE_4BYTE_ABGR);
-            bi.getRaster().setDataElements(0, 0, info.getWidth(), info.getHeight(), decompressed);
-            dds.getMipMaps()[i] = bi;
-        }
-        return dds;
+    /**
+     * DDS levels only come from {@link #decode}, so all of them are pooled.
+     */
+    @Override
+    protected void release(BufferedImage mipMap) {
+        ByteArrayPool.DEFAULT.release(((DataBufferByte) mipMap.getRaster().getDataBuffer()).getData());
     }
 
-    private static byte[] decompress(byte[] compressed, int width, int height, Format format) throws IOException {
-        Squish.CompressionType compressionType;
-        try {
-            compressionType = Squish.CompressionType.valueOf(format.toString());
-        } catch (IllegalArgumentException iae) {
+    private static void checkFormat(Format format) throws IOException {
+        if (!isSupported(format))
             throw new IOException("Format " + format + " is not supported");
+    }
+
+    /**
+     * Decodes level into a TYPE_4BYTE_ABGR image backed by an array
+     * from {@link ByteArrayPool#DEFAULT}.
+     */
+    static BufferedImage decode(byte[] src, int offset, int width, int height, Format format) {
+        return decode(src, offset, width, height, format, () -> false);
+    }
+
+    static BufferedImage decode(byte[] src, int offset, int width, int height, Format format, BooleanSupplier cancelled) {
+        byte[] pixels = ByteArrayPool.DEFAULT.acquire(width * height * 4);
+        try {
+            DXTDecoder.decode(src, offset, width, height, format, pixels, cancelled);
+        } catch (CancellationException e) {
+            ByteArrayPool.DEFAULT.release(pixels);
+            throw e;
         }
-        return Squish.decompressImage(null, width, height, compressed, compressionType);
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(pixels, pixels.length),
+                width, height, width * 4, 4, new int[]{3, 2, 1, 0}, null);
+        return new BufferedImage(ABGR, raster, false, null);
     }
 
     public static Format getFormat(int format) throws IOException {
@@ -100,6 +147,37 @@ public class DDS extends Img {
         }
     }
 
+    /**
+     * Writes a DDS file without decoding: the header, then the level
+     * ranges transferred from the package file. Only valid for packages
+     * that are not encrypted.
+     *
+     * @param src          package file
+     * @param objectOffset file offset of the texture object data
+     */
+    public static void transfer(FileChannel src, long objectOffset, MipMapInfo info, File file) throws IOException {
+        ByteBuffer header = DDSImage.createHeader(getFormat(info.format), info.width, info.height, info.offsets.length);
+        try (FileChannel dst = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining())
+                dst.write(header);
+            for (int i = 0; i < info.offsets.length; i++) {
+                long position = objectOffset + info.offsets[i];
+                long count = info.sizes[i];
+                while (count > 0) {
+                    long transferred = src.transferTo(position, count, dst);
+                    if (transferred <= 0)
+                        throw new EOFException();
+                    position += transferred;
+                    count -= transferred;
+                }
+            }
+        }
+    }
+
+    public static boolean isSupported(Format format) {
+        return format == Format.DXT1 || format == Format.DXT3 || format == Format.DXT5;
+    }
+
     @Override
     public void write(File file) throws IOException {
         ByteBuffer[] buffers = new ByteBuffer[getData().length];
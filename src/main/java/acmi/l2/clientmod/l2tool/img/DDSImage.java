@@ -42,6 +42,7 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 /**
  * A reader and writer for DirectDraw Surface (.dds) files, which are
@@ -254,6 +255,30 @@ public class DDSImage {
         return image;
     }
 
+    /**
+     * Creates the header a DDS file with the given surface description
+     * starts with, mipmap data is expected to follow it.
+     *
+     * @param d3dFormat   the D3DFMT_ constant describing the data
+     * @param width       the width of the topmost image
+     * @param height      the height of the topmost image
+     * @param mipmapCount number of mipmaps
+     * @return little-endian header, positioned at 0
+     */
+    public static ByteBuffer createHeader(int d3dFormat,
+                                          int width,
+                                          int height,
+                                          int mipmapCount) {
+        ByteBuffer[] mipmapData = new ByteBuffer[mipmapCount];
+        Arrays.fill(mipmapData, ByteBuffer.allocate(0));
+        DDSImage image = createFromData(d3dFormat, width, height, mipmapData);
+        ByteBuffer hdr = ByteBuffer.allocate(Header.writtenSize());
+        hdr.order(ByteOrder.LITTLE_ENDIAN);
+        image.header.write(hdr);
+        hdr.rewind();
+        return hdr;
+    }
+
     /**
      * Determines from the magic number whether the given InputStream
      * points to a DDS image. The given InputStream must return true
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * DXT1/3/5 decoder writing TYPE_4BYTE_ABGR pixels into a caller supplied
+ * array. Follows the squish reference decoder, output is identical to
+ * {@code Squish.decompressImage}.
+ */
+public final class DXTDecoder {
+    private static final int STRIPE_BLOCK_ROWS = 16;
+
+    private DXTDecoder() {
+    }
+
+    public static int getBlockSize(Img.Format format) {
+        return format == Img.Format.DXT1 ? 8 : 16;
+    }
+
+    /**
+     * Decodes level of {@code width x height} pixels. Stripes of
+     * {@link #STRIPE_BLOCK_ROWS} block rows are decoded in parallel.
+     *
+     * @param src    compressed blocks
+     * @param offset offset of the first block in src
+     * @param abgr   destination, at least {@code width * height * 4} bytes
+     */
+    public static void decode(byte[] src, int offset, int width, int height, Img.Format format, byte[] abgr) {
+        decode(src, offset, width, height, format, abgr, () -> false);
+    }
+
+    /**
+     * Same as {@link #decode(byte[], int, int, int, Img.Format, byte[])},
+     * {@code cancelled} is checked before each stripe.
+     *
+     * @throws CancellationException if {@code cancelled} returned true,
+     *                               abgr is partially filled then
+     */
+    public static void decode(byte[] src, int offset, int width, int height, Img.Format format, byte[] abgr, BooleanSupplier cancelled) {
+        if (format != Img.Format.DXT1 && format != Img.Format.DXT3 && format != Img.Format.DXT5)
+            throw new IllegalArgumentException("Format " + format + " is not supported");
+
+        int blockRows = (height + 3) / 4;
+        int stripes = (blockRows + STRIPE_BLOCK_ROWS - 1) / STRIPE_BLOCK_ROWS;
+        IntStream range = IntStream.range(0, stripes);
+        (stripes < 2 ? range : range.parallel()).forEach(i -> {
+            if (!cancelled.getAsBoolean())
+                decodeRows(src, offset, width, height, format, abgr,
+                        i * STRIPE_BLOCK_ROWS, Math.min(blockRows, (i + 1) * STRIPE_BLOCK_ROWS));
+        });
+        if (cancelled.getAsBoolean())
+            throw new CancellationException();
+    }
+
+    private static void decodeRows(byte[] src, int offset, int width, int height, Img.Format format, byte[] abgr, int fromRow, int toRow) {
+        int blockSize = getBlockSize(format);
+        int blocksPerRow = (width + 3) / 4;
+
+        int[] red = new int[4];
+        int[] green = new int[4];
+        int[] blue = new int[4];
+        int[] alpha = new int[16];
+        int[] alphaCodes = new int[8];
+
+        for (int by = fromRow; by < toRow; by++) {
+            for (int bx = 0; bx < blocksPerRow; bx++) {
+                int block = offset + (by * blocksPerRow + bx) * blockSize;
+                int colourBlock = format == Img.Format.DXT1 ? block : block + 8;
+
+                int a = (src[colourBlock] & 0xff) | (src[colourBlock + 1] & 0xff) << 8;
+                int b = (src[colourBlock + 2] & 0xff) | (src[colourBlock + 3] & 0xff) << 8;
+                unpack565(a, red, green, blue, 0);
+                unpack565(b, red, green, blue, 1);
+
+                boolean threeColour = format == Img.Format.DXT1 && a <= b;
+                if (threeColour) {
+                    red[2] = (red[0] + red[1]) / 2;
+                    green[2] = (green[0] + green[1]) / 2;
+                    blue[2] = (blue[0] + blue[1]) / 2;
+                    red[3] = green[3] = blue[3] = 0;
+                } else {
+                    red[2] = (2 * red[0] + red[1]) / 3;
+                    green[2] = (2 * green[0] + green[1]) / 3;
+                    blue[2] = (2 * blue[0] + blue[1]) / 3;
+                    red[3] = (red[0] + 2 * red[1]) / 3;
+                    green[3] = (green[0] + 2 * green[1]) / 3;
+                    blue[3] = (blue[0] + 2 * blue[1]) / 3;
+                }
+
+                int indices = (src[colourBlock + 4] & 0xff) |
+                        (src[colourBlock + 5] & 0xff) << 8 |
+                        (src[colourBlock + 6] & 0xff) << 16 |
+                        (src[colourBlock + 7] & 0xff) << 24;
+
+                switch (format) {
+                    case DXT1:
+                        for (int i = 0; i < 16; i++)
+                            alpha[i] = threeColour && (indices >>> 2 * i & 3) == 3 ? 0 : 255;
+                        break;
+                    case DXT3:
+                        for (int i = 0; i < 16; i++) {
+                            int quant = (src[block + i / 2] & 0xff) >> 4 * (i & 1) & 0x0f;
+                            alpha[i] = quant | quant << 4;
+                        }
+                        break;
+                    case DXT5:
+                        decodeAlphaCodes(src[block] & 0xff, src[block + 1] & 0xff, alphaCodes);
+                        long alphaIndices = 0;
+                        for (int i = 0; i < 6; i++)
+                            alphaIndices |= (long) (src[block + 2 + i] & 0xff) << 8 * i;
+                        for (int i = 0; i < 16; i++)
+                            alpha[i] = alphaCodes[(int) (alphaIndices >>> 3 * i) & 7];
+                        break;
+                }
+
+                for (int py = 0; py < 4; py++) {
+                    int y = by * 4 + py;
+                    if (y >= height)
+                        break;
+                    for (int px = 0; px < 4; px++) {
+                        int x = bx * 4 + px;
+                        if (x >= width)
+                            break;
+                        int i = py * 4 + px;
+                        int index = indices >>> 2 * i & 3;
+                        int target = (y * width + x) * 4;
+                        abgr[target] = (byte) alpha[i];
+                        abgr[target + 1] = (byte) blue[index];
+                        abgr[target + 2] = (byte) green[index];
+                        abgr[target + 3] = (byte) red[index];
+                    }
+                }
+            }
+        }
+    }
+
+    private static void unpack565(int value, int[] red, int[] green, int[] blue, int i) {
+        int r = value >> 11 & 0x1f;
+        int g = value >> 5 & 0x3f;
+        int b = value & 0x1f;
+        red[i] = r << 3 | r >> 2;
+        green[i] = g << 2 | g >> 4;
+        blue[i] = b << 3 | b >> 2;
+    }
+
+    private static void decodeAlphaCodes(int alpha0, int alpha1, int[] codes) {
+        codes[0] = alpha0;
+        codes[1] = alpha1;
+        if (alpha0 <= alpha1) {
+            for (int i = 1; i < 5; i++)
+                codes[1 + i] = ((5 - i) * alpha0 + i * alpha1) / 5;
+            codes[6] = 0;
+            codes[7] = 255;
+        } else {
+            for (int i = 1; i < 7; i++)
+                codes[1 + i] = ((7 - i) * alpha0 + i * alpha1) / 7;
+        }
+    }
+}
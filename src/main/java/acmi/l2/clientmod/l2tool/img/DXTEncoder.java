@@ -0,0 +1,502 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * DXT1/3/5 encoder. Block rows and mip levels are encoded in parallel.
+ * <p>
+ * {@link Quality#FAST} takes colour endpoints from the bounding box of the
+ * block, {@link Quality#NORMAL} from the principal axis with one least
+ * squares refinement, {@link Quality#HIGH} refines until the error stops
+ * dropping, also tries the three colour mode of DXT1 and the 0/255 alpha
+ * ramp of DXT5.
+ */
+public final class DXTEncoder {
+    public enum Quality {
+        FAST,
+        NORMAL,
+        HIGH
+    }
+
+    private DXTEncoder() {
+    }
+
+    /**
+     * Encodes the image and {@code count - 1} levels below it built by
+     * {@link MipMapGenerator}.
+     */
+    public static byte[][] encodeMipMaps(BufferedImage image, int count, Img.Format format, Quality quality) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[][] levels = MipMapGenerator.generate(image.getRGB(0, 0, width, height, null, 0, width), width, height, count);
+
+        byte[][] data = new byte[count][];
+        IntStream.range(0, count).parallel().forEach(i ->
+                data[i] = encode(levels[i], Math.max(width >> i, 1), Math.max(height >> i, 1), format, quality));
+        return data;
+    }
+
+    /**
+     * @param argb non-premultiplied pixels, row by row
+     */
+    public static byte[] encode(int[] argb, int width, int height, Img.Format format, Quality quality) {
+        if (format != Img.Format.DXT1 && format != Img.Format.DXT3 && format != Img.Format.DXT5)
+            throw new IllegalArgumentException("Format " + format + " is not supported");
+
+        int blockSize = DXTDecoder.getBlockSize(format);
+        int blocksPerRow = (width + 3) / 4;
+        byte[] blocks = new byte[blocksPerRow * ((height + 3) / 4) * blockSize];
+        IntStream.range(0, (height + 3) / 4).parallel().forEach(by -> {
+            BlockEncoder encoder = new BlockEncoder(quality);
+            int[] block = new int[16];
+            for (int bx = 0; bx < blocksPerRow; bx++) {
+                for (int i = 0; i < 16; i++) {
+                    int x = Math.min(bx * 4 + (i & 3), width - 1);
+                    int y = Math.min(by * 4 + (i >> 2), height - 1);
+                    block[i] = argb[y * width + x];
+                }
+
+                int offset = (by * blocksPerRow + bx) * blockSize;
+                switch (format) {
+                    case DXT1:
+                        encoder.colour(block, true, blocks, offset);
+                        break;
+                    case DXT3:
+                        encoder.explicitAlpha(block, blocks, offset);
+                        encoder.colour(block, false, blocks, offset + 8);
+                        break;
+                    case DXT5:
+                        encoder.interpolatedAlpha(block, blocks, offset);
+                        encoder.colour(block, false, blocks, offset + 8);
+                        break;
+                }
+            }
+        });
+        return blocks;
+    }
+
+    private static final class BlockEncoder {
+        private final Quality quality;
+
+        private final int[] red = new int[16];
+        private final int[] green = new int[16];
+        private final int[] blue = new int[16];
+        private final boolean[] transparent = new boolean[16];
+
+        private final int[] paletteRed = new int[4];
+        private final int[] paletteGreen = new int[4];
+        private final int[] paletteBlue = new int[4];
+        private final float[] endpoints = new float[6];
+
+        private final int[] indices = new int[16];
+        private final int[] bestIndices = new int[16];
+        private int bestColour0;
+        private int bestColour1;
+        private int bestError;
+
+        private final int[] alpha = new int[16];
+        private final int[] alphaCodes = new int[8];
+        private final int[] alphaIndices = new int[16];
+
+        BlockEncoder(Quality quality) {
+            this.quality = quality;
+        }
+
+        void colour(int[] argb, boolean dxt1, byte[] dst, int offset) {
+            boolean hasTransparent = false;
+            boolean allTransparent = true;
+            for (int i = 0; i < 16; i++) {
+                transparent[i] = dxt1 && (argb[i] >>> 24) < 128;
+                hasTransparent |= transparent[i];
+                allTransparent &= transparent[i];
+                red[i] = argb[i] >> 16 & 0xff;
+                green[i] = argb[i] >> 8 & 0xff;
+                blue[i] = argb[i] & 0xff;
+            }
+
+            if (allTransparent) {
+                Arrays.fill(bestIndices, 3);
+                write(0, 0, dst, offset);
+                return;
+            }
+
+            bestError = Integer.MAX_VALUE;
+            fit(dxt1, hasTransparent);
+            if (dxt1 && !hasTransparent && quality == Quality.HIGH)
+                fit(true, true);
+
+            write(bestColour0, bestColour1, dst, offset);
+        }
+
+        private void fit(boolean dxt1, boolean threeColour) {
+            if (quality == Quality.FAST)
+                boundingBox();
+            else
+                principalAxis();
+
+            int error = tryEndpoints(dxt1, threeColour);
+            int iterations = quality == Quality.FAST ? 0 : quality == Quality.NORMAL ? 1 : 8;
+            for (int i = 0; i < iterations && error > 0; i++) {
+                if (!leastSquares(threeColour))
+                    break;
+                int refined = tryEndpoints(dxt1, threeColour);
+                if (refined >= error)
+                    break;
+                error = refined;
+            }
+        }
+
+        private void boundingBox() {
+            int minR = 255, minG = 255, minB = 255, maxR = 0, maxG = 0, maxB = 0;
+            int count = 0, sumR = 0, sumG = 0, sumB = 0;
+            for (int i = 0; i < 16; i++) {
+                if (transparent[i])
+                    continue;
+                minR = Math.min(minR, red[i]);
+                minG = Math.min(minG, green[i]);
+                minB = Math.min(minB, blue[i]);
+                maxR = Math.max(maxR, red[i]);
+                maxG = Math.max(maxG, green[i]);
+                maxB = Math.max(maxB, blue[i]);
+                sumR += red[i];
+                sumG += green[i];
+                sumB += blue[i];
+                count++;
+            }
+
+            // pick the diagonal of the box the colours lie along
+            float meanR = (float) sumR / count, meanG = (float) sumG / count, meanB = (float) sumB / count;
+            float covRG = 0, covBG = 0;
+            for (int i = 0; i < 16; i++) {
+                if (transparent[i])
+                    continue;
+                covRG += (red[i] - meanR) * (green[i] - meanG);
+                covBG += (blue[i] - meanB) * (green[i] - meanG);
+            }
+            if (covRG < 0) {
+                int t = minR;
+                minR = maxR;
+                maxR = t;
+            }
+            if (covBG < 0) {
+                int t = minB;
+                minB = maxB;
+                maxB = t;
+            }
+
+            float insetR = (maxR - minR) / 16f, insetG = (maxG - minG) / 16f, insetB = (maxB - minB) / 16f;
+            endpoints[0] = maxR - insetR;
+            endpoints[1] = maxG - insetG;
+            endpoints[2] = maxB - insetB;
+            endpoints[3] = minR + insetR;
+            endpoints[4] = minG + insetG;
+            endpoints[5] = minB + insetB;
+        }
+
+        private void principalAxis() {
+            int count = 0;
+            float meanR = 0, meanG = 0, meanB = 0;
+            for (int i = 0; i < 16; i++) {
+                if (transparent[i])
+                    continue;
+                meanR += red[i];
+                meanG += green[i];
+                meanB += blue[i];
+                count++;
+            }
+            meanR /= count;
+            meanG /= count;
+            meanB /= count;
+
+            float rr = 0, rg = 0, rb = 0, gg = 0, gb = 0, bb = 0;
+            for (int i = 0; i < 16; i++) {
+                if (transparent[i])
+                    continue;
+                float r = red[i] - meanR, g = green[i] - meanG, b = blue[i] - meanB;
+                rr += r * r;
+                rg += r * g;
+                rb += r * b;
+                gg += g * g;
+                gb += g * b;
+                bb += b * b;
+            }
+
+            float axisR = 1, axisG = 1, axisB = 1;
+            for (int i = 0; i < 8; i++) {
+                float r = rr * axisR + rg * axisG + rb * axisB;
+                float g = rg * axisR + gg * axisG + gb * axisB;
+                float b = rb * axisR + gb * axisG + bb * axisB;
+                float max = Math.max(Math.abs(r), Math.max(Math.abs(g), Math.abs(b)));
+                if (max == 0)
+                    break;
+                axisR = r / max;
+                axisG = g / max;
+                axisB = b / max;
+            }
+
+            int min = -1, max = -1;
+            float minT = Float.MAX_VALUE, maxT = -Float.MAX_VALUE;
+            for (int i = 0; i < 16; i++) {
+                if (transparent[i])
+                    continue;
+                float t = red[i] * axisR + green[i] * axisG + blue[i] * axisB;
+                if (t < minT) {
+                    minT = t;
+                    min = i;
+                }
+                if (t > maxT) {
+                    maxT = t;
+                    max = i;
+                }
+            }
+            endpoints[0] = red[max];
+            endpoints[1] = green[max];
+            endpoints[2] = blue[max];
+            endpoints[3] = red[min];
+            endpoints[4] = green[min];
+            endpoints[5] = blue[min];
+        }
+
+        /**
+         * Solves endpoints for the current best indices.
+         *
+         * @return false if the system is degenerate
+         */
+        private boolean leastSquares(boolean threeColour) {
+            float aa = 0, bb = 0, ab = 0;
+            float axR = 0, axG = 0, axB = 0, bxR = 0, bxG = 0, bxB = 0;
+            for (int i = 0; i < 16; i++) {
+                if (transparent[i])
+                    continue;
+                float w;
+                switch (bestIndices[i]) {
+                    case 0:
+                        w = 0;
+                        break;
+                    case 1:
+                        w = 1;
+                        break;
+                    case 2:
+                        w = threeColour ? 1 / 2f : 1 / 3f;
+                        break;
+                    default:
+                        w = 2 / 3f;
+                }
+                float v = 1 - w;
+                aa += v * v;
+                bb += w * w;
+                ab += v * w;
+                axR += v * red[i];
+                axG += v * green[i];
+                axB += v * blue[i];
+                bxR += w * red[i];
+                bxG += w * green[i];
+                bxB += w * blue[i];
+            }
+
+            float det = aa * bb - ab * ab;
+            if (Math.abs(det) < 1e-6f)
+                return false;
+
+            endpoints[0] = (axR * bb - bxR * ab) / det;
+            endpoints[1] = (axG * bb - bxG * ab) / det;
+            endpoints[2] = (axB * bb - bxB * ab) / det;
+            endpoints[3] = (bxR * aa - axR * ab) / det;
+            endpoints[4] = (bxG * aa - axG * ab) / det;
+            endpoints[5] = (bxB * aa - axB * ab) / det;
+            return true;
+        }
+
+        /**
+         * Quantizes {@link #endpoints}, assigns indices and keeps the result
+         * if it beats the best one so far.
+         *
+         * @return error of these endpoints
+         */
+        private int tryEndpoints(boolean dxt1, boolean threeColour) {
+            int colour0 = pack565(endpoints[0], endpoints[1], endpoints[2]);
+            int colour1 = pack565(endpoints[3], endpoints[4], endpoints[5]);
+            if (threeColour ? colour0 > colour1 : colour0 < colour1) {
+                int t = colour0;
+                colour0 = colour1;
+                colour1 = t;
+            }
+
+            // palette as the decoder sees it
+            unpack565(colour0, 0);
+            unpack565(colour1, 1);
+            boolean decodedThreeColour = dxt1 && colour0 <= colour1;
+            if (decodedThreeColour) {
+                paletteRed[2] = (paletteRed[0] + paletteRed[1]) / 2;
+                paletteGreen[2] = (paletteGreen[0] + paletteGreen[1]) / 2;
+                paletteBlue[2] = (paletteBlue[0] + paletteBlue[1]) / 2;
+            } else {
+                paletteRed[2] = (2 * paletteRed[0] + paletteRed[1]) / 3;
+                paletteGreen[2] = (2 * paletteGreen[0] + paletteGreen[1]) / 3;
+                paletteBlue[2] = (2 * paletteBlue[0] + paletteBlue[1]) / 3;
+                paletteRed[3] = (paletteRed[0] + 2 * paletteRed[1]) / 3;
+                paletteGreen[3] = (paletteGreen[0] + 2 * paletteGreen[1]) / 3;
+                paletteBlue[3] = (paletteBlue[0] + 2 * paletteBlue[1]) / 3;
+            }
+            int codes = decodedThreeColour ? 3 : 4;
+
+            int error = 0;
+            for (int i = 0; i < 16; i++) {
+                if (transparent[i]) {
+                    indices[i] = 3;
+                    continue;
+                }
+                int best = 0, bestDistance = Integer.MAX_VALUE;
+                for (int j = 0; j < codes; j++) {
+                    int r = red[i] - paletteRed[j], g = green[i] - paletteGreen[j], b = blue[i] - paletteBlue[j];
+                    int distance = r * r + g * g + b * b;
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = j;
+                    }
+                }
+                indices[i] = best;
+                error += bestDistance;
+            }
+
+            if (error < bestError) {
+                bestError = error;
+                bestColour0 = colour0;
+                bestColour1 = colour1;
+                System.arraycopy(indices, 0, bestIndices, 0, 16);
+            }
+            return error;
+        }
+
+        private void unpack565(int value, int i) {
+            int r = value >> 11 & 0x1f;
+            int g = value >> 5 & 0x3f;
+            int b = value & 0x1f;
+            paletteRed[i] = r << 3 | r >> 2;
+            paletteGreen[i] = g << 2 | g >> 4;
+            paletteBlue[i] = b << 3 | b >> 2;
+        }
+
+        private static int pack565(float r, float g, float b) {
+            int r5 = clamp(Math.round(r * 31 / 255), 31);
+            int g6 = clamp(Math.round(g * 63 / 255), 63);
+            int b5 = clamp(Math.round(b * 31 / 255), 31);
+            return r5 << 11 | g6 << 5 | b5;
+        }
+
+        private static int clamp(int value, int max) {
+            return Math.max(0, Math.min(max, value));
+        }
+
+        private void write(int colour0, int colour1, byte[] dst, int offset) {
+            dst[offset] = (byte) colour0;
+            dst[offset + 1] = (byte) (colour0 >> 8);
+            dst[offset + 2] = (byte) colour1;
+            dst[offset + 3] = (byte) (colour1 >> 8);
+            int packed = 0;
+            for (int i = 0; i < 16; i++)
+                packed |= bestIndices[i] << 2 * i;
+            dst[offset + 4] = (byte) packed;
+            dst[offset + 5] = (byte) (packed >> 8);
+            dst[offset + 6] = (byte) (packed >> 16);
+            dst[offset + 7] = (byte) (packed >> 24);
+        }
+
+        void explicitAlpha(int[] argb, byte[] dst, int offset) {
+            for (int i = 0; i < 16; i += 2) {
+                int lo = ((argb[i] >>> 24) * 2 + 17) / 34;
+                int hi = ((argb[i + 1] >>> 24) * 2 + 17) / 34;
+                dst[offset + i / 2] = (byte) (lo | hi << 4);
+            }
+        }
+
+        void interpolatedAlpha(int[] argb, byte[] dst, int offset) {
+            int min = 255, max = 0;
+            int min6 = 255, max6 = 0;
+            for (int i = 0; i < 16; i++) {
+                alpha[i] = argb[i] >>> 24;
+                min = Math.min(min, alpha[i]);
+                max = Math.max(max, alpha[i]);
+                if (alpha[i] != 0 && alpha[i] != 255) {
+                    min6 = Math.min(min6, alpha[i]);
+                    max6 = Math.max(max6, alpha[i]);
+                }
+            }
+
+            int alpha0 = max, alpha1 = min;
+            int error = alphaIndices(alpha0, alpha1, alphaIndices);
+            if (quality == Quality.HIGH && error > 0 && min6 <= max6 && (min == 0 || max == 255)) {
+                int[] indices6 = new int[16];
+                int error6 = alphaIndices(min6, max6, indices6);
+                if (error6 < error) {
+                    alpha0 = min6;
+                    alpha1 = max6;
+                    System.arraycopy(indices6, 0, alphaIndices, 0, 16);
+                }
+            }
+
+            dst[offset] = (byte) alpha0;
+            dst[offset + 1] = (byte) alpha1;
+            long packed = 0;
+            for (int i = 0; i < 16; i++)
+                packed |= (long) alphaIndices[i] << 3 * i;
+            for (int i = 0; i < 6; i++)
+                dst[offset + 2 + i] = (byte) (packed >> 8 * i);
+        }
+
+        /**
+         * @return squared error of the ramp
+         */
+        private int alphaIndices(int alpha0, int alpha1, int[] indices) {
+            alphaCodes[0] = alpha0;
+            alphaCodes[1] = alpha1;
+            if (alpha0 <= alpha1) {
+                for (int i = 1; i < 5; i++)
+                    alphaCodes[1 + i] = ((5 - i) * alpha0 + i * alpha1) / 5;
+                alphaCodes[6] = 0;
+                alphaCodes[7] = 255;
+            } else {
+                for (int i = 1; i < 7; i++)
+                    alphaCodes[1 + i] = ((7 - i) * alpha0 + i * alpha1) / 7;
+            }
+
+            int error = 0;
+            for (int i = 0; i < 16; i++) {
+                int best = 0, bestDistance = Integer.MAX_VALUE;
+                for (int j = 0; j < 8; j++) {
+                    int distance = Math.abs(alpha[i] - alphaCodes[j]);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = j;
+                    }
+                }
+                indices[i] = best;
+                error += bestDistance * bestDistance;
+            }
+            return error;
+        }
+    }
+}
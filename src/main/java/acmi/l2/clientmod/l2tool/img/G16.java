@@ -21,11 +21,14 @@
  */
 package acmi.l2.clientmod.l2tool.img;
 
+import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 public class G16 extends Img {
     private G16() {
@@ -35,87 +38,103 @@ public class G16 extends Img {
     public static acmi.l2.clientmod.l2tool.img.G16 createFromData(byte[] data, MipMapInfo info) {
         acmi.l2.clientmod.l2tool.img.G16 G16 = new acmi.l2.clientmod.l2tool.img.G16();
         G16.setName(info.name);
+        G16.setSize(info.width, info.height);
+        G16.setData(new byte[][]{Arrays.copyOfRange(data, info.offsets[0], info.offsets[0] + info.sizes[0])});
+        return G16;
+    }
 
-        byte[] imageData = new byte[info.sizes[0]];
-
-        for (int i = 0; i < data.length - info.width * 2; i += info.width * 2)
-            System.arraycopy(data, info.offsets[0] + i, imageData, imageData.length - i - info.width * 2, info.width * 2);
+    public static acmi.l2.clientmod.l2tool.img.G16 loadFromFile(File file) throws IOException {
+        try (ImageSource source = ImageSource.map(file)) {
+            return load(source);
+        }
+    }
 
-        ByteBuffer buffer = ByteBuffer.wrap(imageData).order(ByteOrder.LITTLE_ENDIAN);
+    public static acmi.l2.clientmod.l2tool.img.G16 load(ImageSource source) throws IOException {
+        acmi.l2.clientmod.l2tool.img.G16 G16 = new acmi.l2.clientmod.l2tool.img.G16();
+        G16.setFormat(Format.G16);
+        G16.setName(source.getName());
+
+        ByteBuffer in = source.getBuffer();
+        if ((in.getShort(0) & 0xffff) != 0x4d42)
+            throw new IOException("Not a bmp file");
+
+        int pixelDataPosition = in.getInt(0x0a);
+
+        int width;
+        int height;
+        int bitCount;
+
+        if (in.getInt(0x0e) < 40) {
+            width = in.getShort(0x12) & 0xffff;
+            height = in.getShort(0x14) & 0xffff;
+            bitCount = in.getShort(0x18) & 0xffff;
+        } else {
+            width = in.getInt(0x12);
+            height = in.getInt(0x16);
+            bitCount = in.getShort(0x1c) & 0xffff;
+        }
 
-        BufferedImage image = new BufferedImage(info.width, info.height, BufferedImage.TYPE_USHORT_GRAY);
-        for (int y = info.height - 1; y >= 0; y--)
-            for (int x = 0; x < info.width; x++) {
-                int b = (buffer.getShort() & 0xffff) >> 8;
-                image.setRGB(x, y, b | (b << 8) | (b << 16));
-            }
+        int byteCount = bitCount / 8;
+        switch (byteCount) {
+            case 2:
+                boolean topToBottom = height < 0;
+                height = Math.abs(height);
+                in.position(pixelDataPosition);
+
+                byte[] imageData = new byte[width * height * byteCount];
+                if (topToBottom) {
+                    in.get(imageData);
+                } else {
+                    // every row goes straight to its place, no intermediate copy
+                    int stride = width * byteCount;
+                    for (int i = imageData.length - stride; i >= 0; i -= stride)
+                        in.get(imageData, i, stride);
+                }
+
+                G16.setSize(width, height);
+                G16.setData(new byte[][]{imageData});
+                break;
+            default:
+                throw new IOException("bitCount " + bitCount + " is not supported");
+        }
 
-        G16.setMipMaps(new BufferedImage[]{image});
-        G16.setData(new byte[][]{imageData});
         return G16;
     }
 
-    public static acmi.l2.clientmod.l2tool.img.G16 loadFromFile(File file) throws IOException {
-        acmi.l2.clientmod.l2tool.img.G16 G16 = new acmi.l2.clientmod.l2tool.img.G16();
-        G16.setFormat(Format.G16);
-        G16.setName(file.getName().substring(0, file.getName().lastIndexOf('.')));
-
-        try (acmi.l2.clientmod.io.RandomAccessFile in = new acmi.l2.clientmod.io.RandomAccessFile(file, true, null)) {
-            if (in.readUnsignedShort() != 0x4d42)
-                throw new IOException("Not a bmp file");
-
-            in.setPosition(0x0a);
-            int pixelDataPosition = in.readInt();
-
-            int width;
-            int height;
-            int planes;
-            int bitCount;
-
-            if (in.readInt() < 40) {
-                width = in.readUnsignedShort();
-                height = in.readUnsignedShort();
-                planes = in.readUnsignedShort();
-                bitCount = in.readUnsignedShort();
-            } else {
-                width = in.readInt();
-                height = in.readInt();
-                planes = in.readUnsignedShort();
-                bitCount = in.readUnsignedShort();
-            }
-
-            in.setPosition(pixelDataPosition);
-
-            int byteCount = bitCount / 8;
-
-            byte[] imageData = new byte[width * height * byteCount];
-            for (int i = 0; i <= imageData.length - width * byteCount; i += width * byteCount)
-                in.readFully(imageData, imageData.length - i - width * byteCount, width * byteCount);
-
-            switch (byteCount) {
-                case 2:
-                    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_USHORT_GRAY);
-
-                    ByteBuffer buffer = ByteBuffer.wrap(imageData).order(ByteOrder.LITTLE_ENDIAN);
-
-                    for (int y = height - 1; y >= 0; y--)
-                        for (int x = 0; x < width; x++) {
-                            int b = (buffer.getShort() & 0xffff) >> 8;
-                            image.setRGB(x, y, b | (b << 8) | (b << 16));
-                        }
-
-
-                    G16.setMipMaps(new BufferedImage[]{image});
-                    G16.setData(new byte[][]{imageData});
-                    break;
-                default:
-                    throw new IOException("bitCount " + bitCount + " is not supported");
-            }
+    /**
+     * Takes 16 bit samples of TYPE_USHORT_GRAY images as is, other images
+     * are converted to it first.
+     */
+    public static acmi.l2.clientmod.l2tool.img.G16 fromImage(String name, BufferedImage image) {
+        BufferedImage gray = image;
+        if (gray.getType() != BufferedImage.TYPE_USHORT_GRAY) {
+            gray = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_USHORT_GRAY);
+            Graphics2D g = gray.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
         }
 
+        acmi.l2.clientmod.l2tool.img.G16 G16 = new acmi.l2.clientmod.l2tool.img.G16();
+        G16.setName(name);
+        G16.setSize(gray.getWidth(), gray.getHeight());
+        byte[] data = new byte[gray.getWidth() * gray.getHeight() * 2];
+        ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+                .put(((DataBufferUShort) gray.getRaster().getDataBuffer()).getData());
+        G16.setData(new byte[][]{data});
         return G16;
     }
 
+    /**
+     * Full 16 bit samples in a TYPE_USHORT_GRAY image, data rows go top to bottom.
+     */
+    @Override
+    protected BufferedImage decodeMipMap(int level) {
+        BufferedImage image = new BufferedImage(getMipMapWidth(level), getMipMapHeight(level), BufferedImage.TYPE_USHORT_GRAY);
+        ByteBuffer.wrap(getData()[level]).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+                .get(((DataBufferUShort) image.getRaster().getDataBuffer()).getData());
+        return image;
+    }
+
     @Override
     public void write(File file) throws IOException {
         try (acmi.l2.clientmod.io.RandomAccessFile out = new acmi.l2.clientmod.io.RandomAccessFile(file, false, null)) {
@@ -136,7 +155,10 @@ public class G16 extends Img {
             out.writeInt(0);
             out.writeInt(0);
 
-            out.writeBytes(getData()[0]);
+            byte[] data = getData()[0];
+            int stride = getWidth() * 2;
+            for (int i = data.length - stride; i >= 0; i -= stride)
+                out.writeBytes(data, i, stride);
 
             out.trimToPosition();
         }
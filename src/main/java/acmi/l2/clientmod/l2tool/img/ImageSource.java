@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Image file in memory. Loaders parse headers and pixel data straight from
+ * the buffer instead of going through streams and copy out what they keep.
+ * <p>
+ * Files up to {@link #MAP_THRESHOLD} are read into the heap, larger ones are
+ * mapped. {@link #close()} releases the mapping so the file is not locked
+ * until the buffer is garbage collected.
+ */
+public class ImageSource implements Closeable {
+    public static final int MAP_THRESHOLD = 16 << 20;
+
+    private final String name;
+    private final boolean mapped;
+    private ByteBuffer buffer;
+
+    private ImageSource(String name, ByteBuffer buffer, boolean mapped) {
+        this.name = name;
+        this.buffer = buffer;
+        this.mapped = mapped;
+    }
+
+    public static ImageSource map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > MAP_THRESHOLD)
+                return new ImageSource(baseName(file), channel.map(FileChannel.MapMode.READ_ONLY, 0, size), true);
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining())
+                if (channel.read(buffer) < 0)
+                    throw new IOException("Unexpected end of file " + file);
+            buffer.flip();
+            return new ImageSource(baseName(file), buffer, false);
+        }
+    }
+
+    public static ImageSource wrap(String name, ByteBuffer buffer) {
+        return new ImageSource(name, buffer.slice(), false);
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * @return file name without extension
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return getBuffer().capacity();
+    }
+
+    /**
+     * @return little-endian view of the whole file, positioned at 0
+     */
+    public ByteBuffer getBuffer() {
+        if (buffer == null)
+            throw new IllegalStateException("Image source is closed");
+        return buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Unmaps a file mapped by {@link #map(File)}. Views returned by {@link #getBuffer()} must not
+     * be used afterwards.
+     */
+    @Override
+    public void close() {
+        ByteBuffer buffer = this.buffer;
+        this.buffer = null;
+        if (mapped && buffer != null)
+            unmap(buffer);
+    }
+
+    /**
+     * Best effort, the mapping is left to the garbage collector if the
+     * cleaner is not accessible.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object c = cleaner.invoke(buffer);
+            if (c != null)
+                c.getClass().getMethod("clean").invoke(c);
+        } catch (ReflectiveOperationException | RuntimeException ignore) {
+        }
+    }
+}
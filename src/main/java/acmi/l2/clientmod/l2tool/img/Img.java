@@ -24,10 +24,26 @@ package acmi.l2.clientmod.l2tool.img;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Texture with its mip levels.
+ * <p>
+ * Raw level data is always present, decoded images are produced on first
+ * access to a level by {@link #decodeMipMap(int)} and kept afterwards.
+ * Formats that build levels from images set them up front.
+ * <p>
+ * Rows go top to bottom both in decoded levels and in level data, the
+ * order textures are stored in packages. Loaders of bottom-up files (BMP,
+ * TGA) flip rows on read and writers flip them back, so levels and data
+ * of any format can be passed to another one as is.
+ */
 public abstract class Img {
     private String name;
     private Format format;
+    private int width;
+    private int height;
     private BufferedImage[] mipMaps;
     private byte[][] data;
 
@@ -47,12 +63,63 @@ public abstract class Img {
         this.format = format;
     }
 
+    public int getMipMapCount() {
+        return mipMaps != null ? mipMaps.length : data.length;
+    }
+
+    /**
+     * @return decoded level, decodes it on first call
+     */
+    public BufferedImage getMipMap(int level) {
+        return getMipMap(level, () -> false);
+    }
+
+    /**
+     * Same as {@link #getMipMap(int)}, a decode in progress stops soon
+     * after {@code cancelled} returns true.
+     *
+     * @throws CancellationException if the decode was cancelled, nothing is
+     *                               kept then
+     */
+    public synchronized BufferedImage getMipMap(int level, BooleanSupplier cancelled) {
+        if (mipMaps == null)
+            mipMaps = new BufferedImage[data.length];
+        if (mipMaps[level] == null)
+            mipMaps[level] = decodeMipMap(level, cancelled);
+        return mipMaps[level];
+    }
+
+    /**
+     * @return all levels, decodes the ones not decoded yet
+     */
     public BufferedImage[] getMipMaps() {
+        BufferedImage[] mipMaps = new BufferedImage[getMipMapCount()];
+        for (int i = 0; i < mipMaps.length; i++)
+            mipMaps[i] = getMipMap(i);
         return mipMaps;
     }
 
-    protected void setMipMaps(BufferedImage[] mipMaps) {
+    protected synchronized void setMipMaps(BufferedImage[] mipMaps) {
         this.mipMaps = mipMaps;
+        if (mipMaps.length > 0 && mipMaps[0] != null)
+            setSize(mipMaps[0].getWidth(), mipMaps[0].getHeight());
+    }
+
+    /**
+     * Decodes level from {@link #getData()}, called once per level.
+     */
+    protected BufferedImage decodeMipMap(int level) {
+        throw new IllegalStateException("Mip map " + level + " is not available");
+    }
+
+    /**
+     * Cancellable {@link #decodeMipMap(int)}, formats with costly decoding
+     * check {@code cancelled} while they work.
+     */
+    protected BufferedImage decodeMipMap(int level, BooleanSupplier cancelled) {
+        if (cancelled.getAsBoolean())
+            throw new CancellationException();
+        return decodeMipMap(level);
     }
 
     public byte[][] getData() {
@@ -63,16 +130,52 @@ public abstract class Img {
         this.data = data;
     }
 
+    protected void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
     public int getWidth() {
-        return getMipMaps()[0].getWidth();
+        return width;
     }
 
     public int getHeight() {
-        return getMipMaps()[0].getHeight();
+        return height;
+    }
+
+    public int getMipMapWidth(int level) {
+        return Math.max(width >> level, 1);
+    }
+
+    public int getMipMapHeight(int level) {
+        return Math.max(height >> level, 1);
     }
 
     public abstract void write(File file) throws IOException;
 
+    /**
+     * Drops decoded levels, pixel arrays that came from
+     * {@link ByteArrayPool#DEFAULT} go back to it. Levels returned before
+     * must not be used afterwards, later calls decode them again.
+     */
+    public synchronized void dispose() {
+        if (mipMaps == null)
+            return;
+
+        for (BufferedImage mipMap : mipMaps) {
+            if (mipMap != null)
+                release(mipMap);
+        }
+        mipMaps = null;
+    }
+
+    /**
+     * Called by {@link #dispose()} for each decoded level. Formats that
+     * decode into pooled arrays return them here, the rest keep nothing.
+     */
+    protected void release(BufferedImage mipMap) {
+    }
+
     public enum Format {
         P8,
         RGBA7,
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * Builds mip chains on int ARGB arrays. Each level is a 2x2 box filter
+ * of the previous one, so the whole chain costs about a third of the top
+ * level. Filtering is done on linear, alpha premultiplied values unless
+ * disabled; rows of large levels are filtered in parallel.
+ */
+public final class MipMapGenerator {
+    private static final int PARALLEL_THRESHOLD = 128 * 128;
+
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+    private static final byte[] LINEAR_TO_SRGB = new byte[1 << 14];
+    private static final float[] UNIT = new float[256];
+
+    static {
+        for (int i = 0; i < SRGB_TO_LINEAR.length; i++) {
+            double c = i / 255.0;
+            UNIT[i] = i / 255f;
+            SRGB_TO_LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+        for (int i = 0; i < LINEAR_TO_SRGB.length; i++) {
+            double c = i / (double) (LINEAR_TO_SRGB.length - 1);
+            double s = c <= 0.0031308 ? c * 12.92 : 1.055 * Math.pow(c, 1 / 2.4) - 0.055;
+            LINEAR_TO_SRGB[i] = (byte) Math.round(s * 255);
+        }
+    }
+
+    private MipMapGenerator() {
+    }
+
+    /**
+     * @return number of levels down to 1x1
+     */
+    public static int getMipMapCount(int width, int height) {
+        return 1 + Img.log2(Math.max(width, height));
+    }
+
+    public static int[][] generate(int[] argb, int width, int height, int count) {
+        return generate(argb, width, height, count, true, true);
+    }
+
+    /**
+     * @param argb        top level, non-premultiplied, row by row
+     * @param count       number of levels including the top one
+     * @param srgb        filter in linear space
+     * @param premultiply weight colour by alpha while filtering
+     * @return {@code count} levels, the first one is {@code argb} itself
+     */
+    public static int[][] generate(int[] argb, int width, int height, int count, boolean srgb, boolean premultiply) {
+        return generate(argb, width, height, count, srgb, premultiply, () -> false);
+    }
+
+    /**
+     * Same as {@link #generate(int[], int, int, int, boolean, boolean)},
+     * {@code cancelled} is checked before each level.
+     *
+     * @throws CancellationException if {@code cancelled} returned true
+     */
+    public static int[][] generate(int[] argb, int width, int height, int count, boolean srgb, boolean premultiply, BooleanSupplier cancelled) {
+        int[][] levels = new int[count][];
+        levels[0] = argb;
+        if (count == 1)
+            return levels;
+
+        float[] toLinear = srgb ? SRGB_TO_LINEAR : UNIT;
+        int w = width, h = height;
+        float[] level = null;
+        for (int i = 1; i < count; i++) {
+            if (cancelled.getAsBoolean())
+                throw new CancellationException();
+            int pw = w, ph = h;
+            w = Math.max(w >> 1, 1);
+            h = Math.max(h >> 1, 1);
+            level = i == 1 ?
+                    reduce(argb, pw, ph, w, h, toLinear, premultiply) :
+                    reduce(level, pw, ph, w, h);
+            levels[i] = pack(level, w, h, srgb, premultiply);
+        }
+        return levels;
+    }
+
+    private static IntStream rows(int width, int height) {
+        IntStream rows = IntStream.range(0, height);
+        return width * height >= PARALLEL_THRESHOLD ? rows.parallel() : rows;
+    }
+
+    /**
+     * First reduction, straight from packed pixels to RGBA floats.
+     */
+    private static float[] reduce(int[] src, int width, int height, int w, int h, float[] toLinear, boolean premultiply) {
+        float[] dst = new float[w * h * 4];
+        rows(w, h).forEach(y -> {
+            int y0 = Math.min(y * 2, height - 1) * width;
+            int y1 = Math.min(y * 2 + 1, height - 1) * width;
+            for (int x = 0, i = y * w * 4; x < w; x++, i += 4) {
+                int x0 = Math.min(x * 2, width - 1);
+                int x1 = Math.min(x * 2 + 1, width - 1);
+                int p00 = src[y0 + x0], p01 = src[y0 + x1], p10 = src[y1 + x0], p11 = src[y1 + x1];
+                float a00 = UNIT[p00 >>> 24], a01 = UNIT[p01 >>> 24], a10 = UNIT[p10 >>> 24], a11 = UNIT[p11 >>> 24];
+                if (!premultiply) {
+                    dst[i] = (toLinear[p00 >> 16 & 0xff] + toLinear[p01 >> 16 & 0xff] + toLinear[p10 >> 16 & 0xff] + toLinear[p11 >> 16 & 0xff]) * .25f;
+                    dst[i + 1] = (toLinear[p00 >> 8 & 0xff] + toLinear[p01 >> 8 & 0xff] + toLinear[p10 >> 8 & 0xff] + toLinear[p11 >> 8 & 0xff]) * .25f;
+                    dst[i + 2] = (toLinear[p00 & 0xff] + toLinear[p01 & 0xff] + toLinear[p10 & 0xff] + toLinear[p11 & 0xff]) * .25f;
+                } else {
+                    dst[i] = (toLinear[p00 >> 16 & 0xff] * a00 + toLinear[p01 >> 16 & 0xff] * a01 + toLinear[p10 >> 16 & 0xff] * a10 + toLinear[p11 >> 16 & 0xff] * a11) * .25f;
+                    dst[i + 1] = (toLinear[p00 >> 8 & 0xff] * a00 + toLinear[p01 >> 8 & 0xff] * a01 + toLinear[p10 >> 8 & 0xff] * a10 + toLinear[p11 >> 8 & 0xff] * a11) * .25f;
+                    dst[i + 2] = (toLinear[p00 & 0xff] * a00 + toLinear[p01 & 0xff] * a01 + toLinear[p10 & 0xff] * a10 + toLinear[p11 & 0xff] * a11) * .25f;
+                }
+                dst[i + 3] = (a00 + a01 + a10 + a11) * .25f;
+            }
+        });
+        return dst;
+    }
+
+    private static float[] reduce(float[] src, int width, int height, int w, int h) {
+        float[] dst = new float[w * h * 4];
+        rows(w, h).forEach(y -> {
+            int y0 = Math.min(y * 2, height - 1) * width;
+            int y1 = Math.min(y * 2 + 1, height - 1) * width;
+            for (int x = 0; x < w; x++) {
+                int x0 = Math.min(x * 2, width - 1);
+                int x1 = Math.min(x * 2 + 1, width - 1);
+                int i00 = (y0 + x0) * 4, i01 = (y0 + x1) * 4, i10 = (y1 + x0) * 4, i11 = (y1 + x1) * 4;
+                int i = (y * w + x) * 4;
+                for (int c = 0; c < 4; c++)
+                    dst[i + c] = (src[i00 + c] + src[i01 + c] + src[i10 + c] + src[i11 + c]) / 4;
+            }
+        });
+        return dst;
+    }
+
+    private static int[] pack(float[] src, int w, int h, boolean srgb, boolean premultiply) {
+        int[] dst = new int[w * h];
+        int max = srgb ? LINEAR_TO_SRGB.length - 1 : 255;
+        rows(w, h).forEach(y -> {
+            for (int x = y * w, i = x * 4; x < (y + 1) * w; x++, i += 4) {
+                float a = src[i + 3];
+                float scale = (premultiply ? (a > 0 ? 1 / a : 0) : 1) * max;
+                int r = (int) Math.min(src[i] * scale + .5f, max);
+                int g = (int) Math.min(src[i + 1] * scale + .5f, max);
+                int b = (int) Math.min(src[i + 2] * scale + .5f, max);
+                if (srgb) {
+                    r = LINEAR_TO_SRGB[r] & 0xff;
+                    g = LINEAR_TO_SRGB[g] & 0xff;
+                    b = LINEAR_TO_SRGB[b] & 0xff;
+                }
+                dst[x] = (int) (a * 255 + .5f) << 24 | r << 16 | g << 8 | b;
+            }
+        });
+        return dst;
+    }
+}
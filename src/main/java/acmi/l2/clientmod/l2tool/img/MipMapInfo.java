@@ -21,15 +21,19 @@
  */
 package acmi.l2.clientmod.l2tool.img;
 
+import acmi.l2.clientmod.io.RandomAccessFile;
 import acmi.l2.clientmod.io.UnrealPackage;
 import acmi.l2.clientmod.texconv.ConvertTool;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 import static acmi.l2.clientmod.io.BufferUtil.getCompactInt;
 
 public class MipMapInfo {
+    private static final int HEADER_WINDOW = 4096;
+
     public String name;
     public int exportIndex;
 
@@ -41,7 +45,10 @@ public class MipMapInfo {
     public int[] sizes;
 
     public static MipMapInfo getInfo(UnrealPackage.ExportEntry entry) {
-        byte[] exportEntryRawData = entry.getObjectRawData();
+        return getInfo(entry, entry.getObjectRawData());
+    }
+
+    public static MipMapInfo getInfo(UnrealPackage.ExportEntry entry, byte[] exportEntryRawData) {
         UnrealPackage up = entry.getUnrealPackage();
 
         MipMapInfo info = new MipMapInfo();
@@ -73,6 +80,66 @@ public class MipMapInfo {
         return info;
     }
 
+    /**
+     * Reads only the property block and mip headers of the texture, pixel
+     * data is skipped.
+     *
+     * @param file opened package file
+     */
+    public static MipMapInfo getInfo(UnrealPackage.ExportEntry entry, RandomAccessFile file) {
+        UnrealPackage up = entry.getUnrealPackage();
+
+        MipMapInfo info = new MipMapInfo();
+        info.name = entry.toString();
+        info.exportIndex = entry.getIndex();
+
+        TextureProperties properties;
+        ByteBuffer texture;
+        for (int window = Math.min(entry.getSize(), HEADER_WINDOW); ; window = Math.min(entry.getSize(), window * 4)) {
+            texture = ByteBuffer.wrap(read(file, entry.getOffset(), window)).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                properties = new TextureProperties().read(up, texture);
+                ConvertTool.readUnk(texture, up.getVersion(), up.getLicense());
+                info.offsets = new int[getCompactInt(texture)];
+                break;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                // skips past the limit fail in Buffer.position with IllegalArgumentException
+                if (window == entry.getSize())
+                    throw e;
+            }
+        }
+
+        info.format = properties.getFormat();
+        info.width = properties.getWidth();
+        info.height = properties.getHeight();
+        info.sizes = new int[info.offsets.length];
+
+        UnrealPackage.Entry palette = up.objectReference(properties.getPalette());
+        if (palette != null)
+            info.palette = Palette.getRGBA((UnrealPackage.ExportEntry) palette);
+
+        int position = texture.position();
+        for (int i = 0; i < info.offsets.length; i++) {
+            position += 4;
+            ByteBuffer size = position + 5 <= texture.limit() ?
+                    (ByteBuffer) texture.position(position) :
+                    ByteBuffer.wrap(read(file, entry.getOffset() + position, Math.min(5, entry.getSize() - position)));
+            int start = size.position();
+            info.sizes[i] = getCompactInt(size);
+            info.offsets[i] = position + size.position() - start;
+            position = info.offsets[i] + info.sizes[i] + 10;
+        }
+
+        return info;
+    }
+
+    private static byte[] read(RandomAccessFile file, int position, int length) {
+        byte[] data = new byte[length];
+        file.setPosition(position);
+        file.readFully(data);
+        return data;
+    }
+
     @Override
     public String toString() {
         return name;
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import acmi.l2.clientmod.io.UnrealPackage;
+
+import java.util.*;
+
+/**
+ * Case-insensitive name table lookup. "None" is matched exactly, like the
+ * engine does.
+ */
+public class NameIndex {
+    private static final Map<UnrealPackage, NameIndex> CACHE = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Map<String, Integer> indices;
+    private final BitSet nones = new BitSet();
+
+    public NameIndex(List<UnrealPackage.NameEntry> nameTable) {
+        indices = new HashMap<>(nameTable.size() * 2);
+        for (UnrealPackage.NameEntry entry : nameTable)
+            add(entry);
+    }
+
+    /**
+     * @return index shared by all users of the package
+     */
+    public static NameIndex of(UnrealPackage up) {
+        return CACHE.computeIfAbsent(up, p -> new NameIndex(p.getNameTable()));
+    }
+
+    /**
+     * @return name index or -1 if there is no such name
+     */
+    public int get(String name) {
+        return indices.getOrDefault(key(name), -1);
+    }
+
+    /**
+     * @return index of the first name that equals "None" or -1
+     */
+    public int getNone() {
+        return nones.nextSetBit(0);
+    }
+
+    /**
+     * @return index of the last name that equals "None" or -1
+     */
+    public int getLastNone() {
+        return nones.length() - 1;
+    }
+
+    /**
+     * @return whether the name at the index equals "None", a package may
+     * have more than one
+     */
+    public boolean isNone(int index) {
+        return index >= 0 && nones.get(index);
+    }
+
+    public void add(UnrealPackage.NameEntry entry) {
+        indices.putIfAbsent(key(entry.getName()), entry.getIndex());
+        if (entry.getName().equals("None"))
+            nones.set(entry.getIndex());
+    }
+
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+}
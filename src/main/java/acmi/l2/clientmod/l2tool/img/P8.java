@@ -21,14 +21,15 @@
  */
 package acmi.l2.clientmod.l2tool.img;
 
-import acmi.l2.clientmod.io.RandomAccessFile;
-
-import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
-import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.stream.IntStream;
 
 public class P8 extends Img {
     private static final int BITS_PER_PIXEL = 8;
@@ -42,88 +43,122 @@ public class P8 extends Img {
         P8 p8 = new P8(info.palette);
         p8.setName(info.name);
 
-        byte[] imageData = new byte[info.sizes[0]];
-
-        for (int i = 0; i < info.sizes[0]; i += info.width)
-            System.arraycopy(data, info.offsets[0] + i, imageData, imageData.length - i - info.width, info.width);
+        byte[] imageData = Arrays.copyOfRange(data, info.offsets[0], info.offsets[0] + info.sizes[0]);
 
-        BufferedImage image = p8.fromData(imageData, info.width, info.height, true);
-
-        p8.setMipMaps(new BufferedImage[]{image});
+        p8.setSize(info.width, info.height);
         p8.setData(new byte[][]{imageData});
         return p8;
     }
 
     public static P8 loadFromFile(File file) throws IOException {
-        try (RandomAccessFile in = new RandomAccessFile(file, true, null)) {
-            int head = in.readUnsignedShort();
-            if (head != 0x4d42) {
-                throw new IOException("Not a bmp file " + Integer.toHexString(head));
-            } else {
-                in.setPosition(0x0a);
-                int pixelDataPosition = in.readInt();
-                int headerSize = in.readInt();
-                int width;
-                int height;
-                int planes;
-                int bitCount;
-                if (headerSize == 12) {
-                    width = in.readUnsignedShort();
-                    height = in.readUnsignedShort();
-                    planes = in.readUnsignedShort();
-                    bitCount = in.readUnsignedShort();
-                } else {
-                    if (headerSize != 40) {
-                        throw new IllegalStateException("Unknown bitmap header (size: " + headerSize + ")");
-                    }
-
-                    width = in.readInt();
-                    height = in.readInt();
-                    planes = in.readUnsignedShort();
-                    bitCount = in.readUnsignedShort();
-                }
-
-                if (bitCount != BITS_PER_PIXEL) {
-                    throw new IOException("Not a 256-color image");
-                } else {
-                    in.setPosition(0x0a + headerSize);
-                    P8 p8 = new P8(new Palette(256));
-                    p8.setFormat(Format.P8);
-                    Palette.readXRGB(p8.palette.colors, in);
-                    in.setPosition(pixelDataPosition);
-                    byte[] data = new byte[width * height];
-                    in.readFully(data);
-                    BufferedImage orig = p8.fromData(data, width, height, false);
-                    BufferedImage[] mipMaps = new BufferedImage[1 + log2(Math.max(width, height))];
-                    mipMaps[0] = orig;
-                    int w = width / 2;
-                    int h = height / 2;
-
-                    for (int ds = 1; ds < mipMaps.length; h = Math.max(h / 2, 1)) {
-                        mipMaps[ds] = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, p8.getColorModel());
-                        Graphics2D i = mipMaps[ds].createGraphics();
-                        i.drawImage(orig, 0, 0, w, h, null);
-                        i.dispose();
-                        ++ds;
-                        w = Math.max(w / 2, 1);
-                    }
-
-                    byte[][] mipMapsData = new byte[mipMaps.length][];
-
-                    for (int i = 0; i < mipMaps.length; ++i) {
-                        mipMapsData[i] = new byte[mipMaps[i].getWidth() * mipMaps[i].getHeight()];
-
-                        for (int j = 0; j < mipMaps[i].getHeight(); ++j) {
-                            System.arraycopy(((DataBufferByte) mipMaps[i].getRaster().getDataBuffer()).getData(), j * mipMaps[i].getWidth(), mipMapsData[i], mipMapsData[i].length - mipMaps[i].getWidth() * (j + 1), mipMaps[i].getWidth());
-                        }
-                    }
-
-                    p8.setData(mipMapsData);
-                    p8.setMipMaps(mipMaps);
-                    return p8;
-                }
+        try (ImageSource source = ImageSource.map(file)) {
+            return load(source);
+        }
+    }
+
+    public static P8 load(ImageSource source) throws IOException {
+        ByteBuffer in = source.getBuffer();
+        int head = in.getShort(0) & 0xffff;
+        if (head != 0x4d42)
+            throw new IOException("Not a bmp file " + Integer.toHexString(head));
+
+        int pixelDataPosition = in.getInt(0x0a);
+        int headerSize = in.getInt(0x0e);
+        int width;
+        int height;
+        int bitCount;
+        if (headerSize == 12) {
+            width = in.getShort(0x12) & 0xffff;
+            height = in.getShort(0x14) & 0xffff;
+            bitCount = in.getShort(0x18) & 0xffff;
+        } else {
+            if (headerSize != 40) {
+                throw new IllegalStateException("Unknown bitmap header (size: " + headerSize + ")");
             }
+
+            width = in.getInt(0x12);
+            height = in.getInt(0x16);
+            bitCount = in.getShort(0x1c) & 0xffff;
+        }
+
+        if (bitCount != BITS_PER_PIXEL)
+            throw new IOException("Not a 256-color image");
+
+        P8 p8 = new P8(new Palette(256));
+        p8.setName(source.getName());
+        p8.setFormat(Format.P8);
+        in.position(0x0e + headerSize);
+        Palette.readXRGB(p8.palette.colors, in);
+
+        BufferedImage orig = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, p8.palette.getColorModel());
+        byte[] pixels = ((DataBufferByte) orig.getRaster().getDataBuffer()).getData();
+        in.position(pixelDataPosition);
+        for (int i = pixels.length - width; i >= 0; i -= width)
+            in.get(pixels, i, width);
+
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++)
+            argb[i] = p8.palette.colors[pixels[i] & 0xff];
+
+        int[][] levels = MipMapGenerator.generate(argb, width, height, MipMapGenerator.getMipMapCount(width, height));
+        BufferedImage[] mipMaps = new BufferedImage[levels.length];
+        mipMaps[0] = orig;
+        ColorQuantizer.Mapper mapper = new ColorQuantizer.Mapper(p8.palette);
+        for (int i = 1; i < mipMaps.length; i++) {
+            mipMaps[i] = new BufferedImage(Math.max(width >> i, 1), Math.max(height >> i, 1), BufferedImage.TYPE_BYTE_INDEXED, p8.palette.getColorModel());
+            byte[] indices = mapper.map(levels[i]);
+            System.arraycopy(indices, 0, ((DataBufferByte) mipMaps[i].getRaster().getDataBuffer()).getData(), 0, indices.length);
         }
+
+        byte[][] mipMapsData = new byte[mipMaps.length][];
+        for (int i = 0; i < mipMaps.length; ++i)
+            mipMapsData[i] = ((DataBufferByte) mipMaps[i].getRaster().getDataBuffer()).getData().clone();
+
+        p8.setData(mipMapsData);
+        p8.setMipMaps(mipMaps);
+        return p8;
+    }
+
+    /**
+     * Quantizes true color image to 256 colors, mip levels are mapped to
+     * the palette of the top one.
+     */
+    public static P8 fromImage(String name, BufferedImage image, boolean dither) {
+        return fromImage(name, image, dither, () -> false);
+    }
+
+    /**
+     * Same as {@link #fromImage(String, BufferedImage, boolean)}, mip map
+     * generation and mapping stop soon after {@code cancelled} returns true.
+     *
+     * @throws CancellationException if {@code cancelled} returned true
+     */
+    public static P8 fromImage(String name, BufferedImage image, boolean dither, BooleanSupplier cancelled) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+
+        P8 p8 = new P8(ColorQuantizer.quantize(argb, 256));
+        p8.setName(name);
+        p8.setFormat(Format.P8);
+
+        int[][] levels = MipMapGenerator.generate(argb, width, height, MipMapGenerator.getMipMapCount(width, height), true, true, cancelled);
+        BufferedImage[] mipMaps = new BufferedImage[levels.length];
+        byte[][] data = new byte[levels.length][];
+        ColorQuantizer.Mapper mapper = new ColorQuantizer.Mapper(p8.palette);
+        IntStream.range(0, levels.length).parallel().forEach(i -> {
+            int w = Math.max(width >> i, 1);
+            int h = Math.max(height >> i, 1);
+            data[i] = dither ?
+                    mapper.dither(levels[i], w, h, cancelled) :
+                    mapper.map(levels[i], cancelled);
+            mipMaps[i] = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, p8.palette.getColorModel());
+            System.arraycopy(data[i], 0, ((DataBufferByte) mipMaps[i].getRaster().getDataBuffer()).getData(), 0, data[i].length);
+        });
+
+        p8.setData(data);
+        p8.setMipMaps(mipMaps);
+        return p8;
     }
 
     @Override
@@ -146,39 +181,19 @@ public class P8 extends Img {
             out.writeInt(0);
             out.writeInt(0);
             Palette.writeARGB(palette.colors, out);
-            out.writeBytes(getData()[0]);
+            byte[] data = getData()[0];
+            for (int i = data.length - getWidth(); i >= 0; i -= getWidth())
+                out.writeBytes(data, i, getWidth());
 
             out.trimToPosition();
         }
     }
 
-    private BufferedImage fromData(byte[] data, int width, int height, boolean reverseLines) {
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, this.getColorModel());
-        if (reverseLines) {
-            for (int i = 0; i < height; ++i) {
-                System.arraycopy(data, i * width, ((DataBufferByte) image.getRaster().getDataBuffer()).getData(), data.length - width - i * width, width);
-            }
-        } else {
-            System.arraycopy(data, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData(), 0, data.length);
-        }
-
+    @Override
+    protected BufferedImage decodeMipMap(int level) {
+        byte[] data = getData()[level];
+        BufferedImage image = new BufferedImage(getMipMapWidth(level), getMipMapHeight(level), BufferedImage.TYPE_BYTE_INDEXED, palette.getColorModel());
+        System.arraycopy(data, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData(), 0, data.length);
         return image;
     }
-
-    private IndexColorModel getColorModel() {
-        int size = this.palette.colors.length;
-        byte[] r = new byte[size];
-        byte[] g = new byte[size];
-        byte[] b = new byte[size];
-        byte[] a = new byte[size];
-
-        for (int i = 0; i < size; ++i) {
-            r[i] = (byte) this.palette.colors[i].getRed();
-            g[i] = (byte) this.palette.colors[i].getGreen();
-            b[i] = (byte) this.palette.colors[i].getBlue();
-            a[i] = (byte) this.palette.colors[i].getAlpha();
-        }
-
-        return new IndexColorModel(BITS_PER_PIXEL, size, r, g, b, a);
-    }
 }
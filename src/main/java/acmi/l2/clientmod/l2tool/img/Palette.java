@@ -23,24 +23,34 @@ package acmi.l2.clientmod.l2tool.img;
 
 import acmi.l2.clientmod.io.*;
 
-import java.awt.*;
-import java.io.ByteArrayInputStream;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import static acmi.l2.clientmod.io.BufferUtil.getCompactInt;
 
 public class Palette {
     public int exportIndex;
-    public final Color[] colors;
+    /**
+     * Packed ARGB
+     */
+    public final int[] colors;
+
+    private IndexColorModel colorModel;
 
     public Palette(int colorCount) {
-        this.colors = new Color[colorCount];
+        this.colors = new int[colorCount];
     }
 
     public static Palette getRGBA(UnrealPackage.ExportEntry entry) {
-        DataInputStream input = new DataInputStream(new ByteArrayInputStream(entry.getObjectRawData()), null);
-        if (input.readCompactInt() != entry.getUnrealPackage().nameReference("None")) {
+        ByteBuffer input = ByteBuffer.wrap(entry.getObjectRawData());
+        if (getCompactInt(input) != NameIndex.of(entry.getUnrealPackage()).getNone()) {
             throw new RuntimeException("Palette with properties");
         } else {
-            Palette palette = new Palette(input.readCompactInt());
+            Palette palette = new Palette(getCompactInt(input));
             readRGBA(palette.colors, input);
             palette.exportIndex = entry.getIndex();
             return palette;
@@ -56,41 +66,63 @@ public class Palette {
         up.getExportTable().get(this.exportIndex).setObjectRawData(baos.toByteArray());
     }
 
-    public static void readRGBA(Color[] colors, DataInput input) {
-        for (int i = 0; i < colors.length; ++i) {
-            int r = input.readUnsignedByte();
-            int g = input.readUnsignedByte();
-            int b = input.readUnsignedByte();
-            int a = input.readUnsignedByte();
-            colors[i] = new Color(r, g, b, a);
-        }
+    /**
+     * Color model of the palette, built on first call, so colors should
+     * not be changed after that.
+     */
+    public IndexColorModel getColorModel() {
+        IndexColorModel colorModel = this.colorModel;
+        if (colorModel == null)
+            this.colorModel = colorModel = new IndexColorModel(8, colors.length, colors, 0, true, -1, DataBuffer.TYPE_BYTE);
+        return colorModel;
     }
 
-    public static void readXRGB(Color[] colors, DataInput input) {
-        for (int i = 0; i < colors.length; ++i) {
-            int b = input.readUnsignedByte();
-            int g = input.readUnsignedByte();
-            int r = input.readUnsignedByte();
-            input.readUnsignedByte();
-            colors[i] = new Color(r, g, b);
-        }
+    /**
+     * R, G, B, A bytes per color
+     */
+    public static void readRGBA(int[] colors, ByteBuffer input) {
+        IntBuffer buffer = input.slice().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        buffer.get(colors);
+        for (int i = 0; i < colors.length; i++)
+            colors[i] = Integer.rotateRight(colors[i], 8);
+        input.position(input.position() + colors.length * 4);
     }
 
-    public static void writeRGBA(Color[] colors, DataOutput output) {
-        for (Color color : colors) {
-            output.writeByte(color.getRed());
-            output.writeByte(color.getGreen());
-            output.writeByte(color.getBlue());
-            output.writeByte(color.getAlpha());
-        }
+    /**
+     * B, G, R, unused bytes per color, as in BMP; colors are opaque
+     */
+    public static void readXRGB(int[] colors, ByteBuffer input) {
+        IntBuffer buffer = input.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        buffer.get(colors);
+        for (int i = 0; i < colors.length; i++)
+            colors[i] |= 0xff000000;
+        input.position(input.position() + colors.length * 4);
     }
 
-    public static void writeARGB(Color[] colors, DataOutput output) {
-        for (Color color : colors) {
-            output.writeByte(color.getBlue());
-            output.writeByte(color.getGreen());
-            output.writeByte(color.getRed());
-            output.writeByte(color.getAlpha());
-        }
+    public static void writeRGBA(int[] colors, ByteBuffer output) {
+        IntBuffer buffer = output.slice().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        for (int color : colors)
+            buffer.put(Integer.rotateLeft(color, 8));
+        output.position(output.position() + colors.length * 4);
+    }
+
+    /**
+     * B, G, R, A bytes per color
+     */
+    public static void writeARGB(int[] colors, ByteBuffer output) {
+        output.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(colors);
+        output.position(output.position() + colors.length * 4);
+    }
+
+    public static void writeRGBA(int[] colors, DataOutput output) {
+        byte[] data = new byte[colors.length * 4];
+        writeRGBA(colors, ByteBuffer.wrap(data));
+        output.writeBytes(data);
+    }
+
+    public static void writeARGB(int[] colors, DataOutput output) {
+        byte[] data = new byte[colors.length * 4];
+        writeARGB(colors, ByteBuffer.wrap(data));
+        output.writeBytes(data);
     }
 }
@@ -23,11 +23,12 @@ package acmi.l2.clientmod.l2tool.img;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.Arrays;
 
 public class TGA extends Img {
@@ -40,70 +41,111 @@ public class TGA extends Img {
     public static acmi.l2.clientmod.l2tool.img.TGA createFromData(byte[] data, MipMapInfo info) {
         acmi.l2.clientmod.l2tool.img.TGA tga = new acmi.l2.clientmod.l2tool.img.TGA();
         tga.setName(info.name);
-        BufferedImage[] mipMaps = new BufferedImage[info.offsets.length];
+        tga.setSize(info.width, info.height);
         byte[][] ds = new byte[info.offsets.length][];
-        for (int i = 0; i < info.offsets.length; i++) {
-            int width = Math.max(info.width / (1 << i), 1);
-            int height = Math.max(info.height / (1 << i), 1);
-
+        for (int i = 0; i < info.offsets.length; i++)
             ds[i] = Arrays.copyOfRange(data, info.offsets[i], info.offsets[i] + info.sizes[i]);
-            ByteBuffer imageBuffer = ByteBuffer.wrap(ds[i]);
-            imageBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            BufferedImage orig = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-            for (int y = 0; y < height; y++)
-                for (int x = 0; x < width; x++) {
-                    orig.setRGB(x, y, imageBuffer.getInt());
-                }
-            mipMaps[i] = orig;
+        tga.setData(ds);
+        return tga;
+    }
+
+    public static acmi.l2.clientmod.l2tool.img.TGA loadFromFile(File file) throws IOException {
+        try (ImageSource source = ImageSource.map(file)) {
+            return load(source);
         }
+    }
+
+    public static acmi.l2.clientmod.l2tool.img.TGA load(ImageSource source) throws IOException {
+        TGAImage image = TGAImage.read(source.getBuffer());
+        if (image.getGLFormat() != GL_BGRA)
+            throw new IOException("Not GL_BGRA format");
+
+        return fromImage(source.getName(), decodeBottomUp(image.getData(), image.getWidth(), image.getHeight()));
+    }
+
+    /**
+     * Builds RGBA8 texture with full mip chain from any image,
+     * e.g. one read by ImageIO.
+     */
+    public static acmi.l2.clientmod.l2tool.img.TGA fromImage(String name, BufferedImage image) {
+        BufferedImage orig = image;
+        if (orig.getType() != BufferedImage.TYPE_INT_ARGB) {
+            orig = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = orig.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+        }
+
+        acmi.l2.clientmod.l2tool.img.TGA tga = new acmi.l2.clientmod.l2tool.img.TGA();
+        tga.setName(name);
+
+        int width = orig.getWidth();
+        int height = orig.getHeight();
+        int[][] levels = MipMapGenerator.generate(((DataBufferInt) orig.getRaster().getDataBuffer()).getData(),
+                width, height, MipMapGenerator.getMipMapCount(width, height));
+        BufferedImage[] mipMaps = new BufferedImage[levels.length];
+        mipMaps[0] = orig;
+        for (int i = 1; i < mipMaps.length; i++) {
+            int w = Math.max(width >> i, 1);
+            int h = Math.max(height >> i, 1);
+            mipMaps[i] = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+            System.arraycopy(levels[i], 0, ((DataBufferInt) mipMaps[i].getRaster().getDataBuffer()).getData(), 0, w * h);
+        }
+
+        byte[][] ds = new byte[mipMaps.length][];
+        for (int i = 0; i < mipMaps.length; i++) {
+            ds[i] = encode(mipMaps[i]);
+        }
+
         tga.setMipMaps(mipMaps);
         tga.setData(ds);
         return tga;
     }
 
-    public static acmi.l2.clientmod.l2tool.img.TGA loadFromFile(File file) throws IOException {
-        try (FileInputStream fis = new FileInputStream(file)) {
-            TGAImage image = TGAImage.read(fis);
-            if (image.getGLFormat() != GL_BGRA)
-                throw new IOException("Not GL_BGRA format");
-
-            acmi.l2.clientmod.l2tool.img.TGA tga = new acmi.l2.clientmod.l2tool.img.TGA();
-            tga.setName(file.getName().substring(0, file.getName().lastIndexOf('.')));
-
-            ByteBuffer imageBuffer = image.getData();
-            imageBuffer.order(ByteOrder.LITTLE_ENDIAN);
-            BufferedImage orig = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
-            for (int y = 0; y < image.getHeight(); y++)
-                for (int x = 0; x < image.getWidth(); x++) {
-                    orig.setRGB(x, y, imageBuffer.getInt());
-                }
-
-            BufferedImage[] mipMaps = new BufferedImage[1 + log2(Math.max(image.getWidth(), image.getHeight()))];
-            mipMaps[0] = orig;
-
-            int w = image.getWidth() / 2;
-            int h = image.getHeight() / 2;
-            for (int i = 1; i < mipMaps.length; i++, w = Math.max(w / 2, 1), h = Math.max(h / 2, 1)) {
-                mipMaps[i] = new BufferedImage(w, h, orig.getType());
-                Graphics2D g = mipMaps[i].createGraphics();
-                g.drawImage(orig, 0, 0, w, h, null);
-                g.dispose();
-            }
-
-            byte[][] ds = new byte[mipMaps.length][];
-            for (int i = 0; i < mipMaps.length; i++) {
-                ds[i] = new byte[mipMaps[i].getWidth() * mipMaps[i].getHeight() * 4];
-                ByteBuffer buffer = ByteBuffer.wrap(ds[i]).order(ByteOrder.LITTLE_ENDIAN);
-                for (int y = mipMaps[i].getHeight() - 1; y >= 0; y--)
-                    for (int x = 0; x < mipMaps[i].getWidth(); x++) {
-                        buffer.putInt(mipMaps[i].getRGB(x, y));
-                    }
-            }
-
-            tga.setMipMaps(mipMaps);
-            tga.setData(ds);
-            return tga;
+    @Override
+    protected BufferedImage decodeMipMap(int level) {
+        return decode(ByteBuffer.wrap(getData()[level]), getMipMapWidth(level), getMipMapHeight(level));
+    }
+
+    /**
+     * Builds TYPE_INT_ARGB image from BGRA pixels, rows are copied in order.
+     */
+    static BufferedImage decode(ByteBuffer data, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        data.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(pixels);
+        return image;
+    }
+
+    /**
+     * Same as {@link #decode(ByteBuffer, int, int)} for BGRA pixels stored
+     * bottom row first, as {@link TGAImage#getData()} returns them.
+     */
+    static BufferedImage decodeBottomUp(ByteBuffer data, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        IntBuffer buffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        for (int y = height - 1; y >= 0; y--)
+            buffer.get(pixels, y * width, width);
+        return image;
+    }
+
+    /**
+     * @return BGRA pixels of the image, top row first
+     */
+    static byte[] encode(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] data = new byte[width * height * 4];
+        IntBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            buffer.put(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0, width * height);
+        } else {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++)
+                buffer.put(image.getRGB(0, y, width, 1, row, 0, width));
         }
+        return data;
     }
 
     @Override
@@ -39,6 +39,7 @@
 package acmi.l2.clientmod.l2tool.img;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
@@ -187,6 +188,34 @@ public class TGAImage {
             }
         }
 
+        Header(ByteBuffer in) throws IOException {
+            tgaType = TYPE_OLD; // dont try and get footer.
+
+            // initial header fields
+            idLength = in.get() & 0xff;
+            colorMapType = in.get() & 0xff;
+            imageType = in.get() & 0xff;
+
+            // color map header fields
+            firstEntryIndex = in.getShort() & 0xffff;
+            colorMapLength = in.getShort() & 0xffff;
+            colorMapEntrySize = in.get();
+
+            // TGA image specification fields
+            xOrigin = in.getShort() & 0xffff;
+            yOrigin = in.getShort() & 0xffff;
+            width = in.getShort() & 0xffff;
+            height = in.getShort() & 0xffff;
+            pixelDepth = in.get();
+            imageDescriptor = in.get();
+
+            if (idLength > 0) {
+                imageIDbuf = new byte[idLength];
+                in.get(imageIDbuf);
+                imageID = new String(imageIDbuf, "US-ASCII");
+            }
+        }
+
         public int tgaType() {
             return tgaType;
         }
@@ -426,6 +455,100 @@ public class TGAImage {
         data = ByteBuffer.wrap(tmpData);
     }
 
+    private void decodeImage(ByteBuffer in) throws IOException {
+        switch (header.imageType()) {
+            case Header.UCOLORMAPPED:
+                throw new IOException("TGADecoder Uncompressed Colormapped images not supported");
+
+            case Header.UTRUECOLOR:    // pixelDepth 15, 16, 24 and 32
+                switch (header.pixelDepth) {
+                    case 16:
+                        throw new IOException("TGADecoder Compressed 16-bit True Color images not supported");
+
+                    case 24:
+                    case 32:
+                        decodeRGBImageU24_32(in);
+                        break;
+                }
+                break;
+
+            case Header.UBLACKWHITE:
+                throw new IOException("TGADecoder Uncompressed Grayscale images not supported");
+
+            case Header.COLORMAPPED:
+                throw new IOException("TGADecoder Compressed Colormapped images not supported");
+
+            case Header.TRUECOLOR:
+                switch (header.pixelDepth) {
+                    case 16:
+                        throw new IOException("TGADecoder Compressed 16-bit True Color images not supported");
+
+                    case 24:
+                    case 32:
+                        decodeRGBImageRLE24_32(in);
+                        break;
+                }
+                break;
+
+            case Header.BLACKWHITE:
+                throw new IOException("TGADecoder Compressed Grayscale images not supported");
+        }
+    }
+
+    /**
+     * Bottom-to-top images share pixel data with the source buffer,
+     * top-to-bottom ones are flipped into a new array.
+     */
+    private void decodeRGBImageU24_32(ByteBuffer in) throws IOException {
+        setupImage24_32();
+
+        int rawWidth = header.width() * bpp;
+        if (in.remaining() < rawWidth * header.height())
+            throw new EOFException();
+
+        if (!header.topToBottom()) {
+            ByteBuffer slice = in.slice();
+            slice.limit(rawWidth * header.height());
+            data = slice;
+            return;
+        }
+
+        byte[] tmpData = new byte[rawWidth * header.height()];
+        for (int i = 0; i < header.height(); ++i) {
+            int y = header.topToBottom() ? header.height - i - 1 : i;
+            in.get(tmpData, y * rawWidth, rawWidth);
+        }
+
+        if (format == GL_RGB || format == GL_RGBA)
+            swapBGR(tmpData, rawWidth, header.height(), bpp);
+        data = ByteBuffer.wrap(tmpData);
+    }
+
+    private void decodeRGBImageRLE24_32(ByteBuffer in) throws IOException {
+        setupImage24_32();
+
+        byte[] pixel = new byte[bpp];
+        int rawWidth = header.width() * bpp;
+        byte[] tmpData = new byte[rawWidth * header.height()];
+        int i = 0, j;
+        int packet, len;
+        while (i < tmpData.length) {
+            packet = in.get() & 0xff;
+            len = (packet & 0x7F) + 1;
+            if ((packet & 0x80) != 0) {
+                in.get(pixel);
+                for (j = 0; j < len; ++j)
+                    System.arraycopy(pixel, 0, tmpData, i + j * bpp, bpp);
+            } else
+                in.get(tmpData, i, len * bpp);
+            i += bpp * len;
+        }
+
+        if (format == GL_RGB || format == GL_RGBA)
+            swapBGR(tmpData, rawWidth, header.height(), bpp);
+        data = ByteBuffer.wrap(tmpData);
+    }
+
     private void setupImage24_32() {
         bpp = header.pixelDepth / 8;
         switch (header.pixelDepth) {
@@ -509,6 +632,22 @@ public class TGAImage {
         return res;
     }
 
+    /**
+     * Reads a Targa image from the specified ByteBuffer, starting at its
+     * current position.
+     */
+    public static TGAImage read(ByteBuffer buf) throws IOException {
+        ByteBuffer in = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            Header header = new Header(in);
+            TGAImage res = new TGAImage(header);
+            res.decodeImage(in);
+            return res;
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
     /**
      * Writes the image in Targa format to the specified file name.
      */
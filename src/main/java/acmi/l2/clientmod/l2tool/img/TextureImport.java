@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import java.io.IOException;
+
+/**
+ * Puts an image loaded from a file into the place of a package texture.
+ */
+public final class TextureImport {
+    private TextureImport() {
+    }
+
+    /**
+     * RGBA8 images of the texture size are compressed to DXT or quantized
+     * to P8 when the texture is stored that way, other images are returned
+     * as is. Encoding large images takes a while, call it off the FX thread.
+     */
+    public static Img convert(Img img, MipMapInfo info) throws IOException {
+        if (img.getFormat() != Img.Format.RGBA8 || info.width != img.getWidth() || info.height != img.getHeight())
+            return img;
+
+        if (DDS.isSupported(info.format))
+            return DDS.createFromImage(img.getName(), img.getMipMap(0), info.format, info.offsets.length, DXTEncoder.Quality.NORMAL);
+        if (info.format == Img.Format.P8)
+            return P8.fromImage(img.getName(), img.getMipMap(0), true);
+        return img;
+    }
+
+    /**
+     * @return why the image can't replace the texture, null if it can
+     */
+    public static String mismatch(Img img, MipMapInfo info) {
+        if (info.format != img.getFormat())
+            return "img format:\t" + img.getFormat() + "\nutx format:\t" + info.format;
+        if (info.width != img.getWidth() || info.height != img.getHeight())
+            return "img size:\t" + img.getWidth() + "x" + img.getHeight() + "\nutx size:\t" + info.width + "x" + info.height;
+        if (info.offsets.length > img.getMipMapCount())
+            return "img mipmap count:\t" + img.getMipMapCount() + "\nutx mipmap count:\t" + info.offsets.length;
+        return null;
+    }
+
+    /**
+     * Copies level data of the image over the texture levels in the raw
+     * object data, levels are matched by size.
+     */
+    public static void copyLevels(Img img, MipMapInfo info, byte[] raw) throws IOException {
+        for (int i = 0; i < info.offsets.length; i++) {
+            byte[] replace = null;
+            for (int j = 0; j < img.getMipMapCount(); j++) {
+                if (img.getData()[j].length == info.sizes[i])
+                    replace = img.getData()[j];
+            }
+            if (replace == null)
+                throw new IOException("No suitable MipMap found");
+
+            System.arraycopy(replace, 0, raw, info.offsets[i], info.sizes[i]);
+        }
+    }
+}
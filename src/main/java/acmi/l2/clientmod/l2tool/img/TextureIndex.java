@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.l2tool.img;
+
+import acmi.l2.clientmod.io.RandomAccessFile;
+import acmi.l2.clientmod.io.UnrealPackage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.DoubleConsumer;
+
+import static acmi.l2.clientmod.io.BufferUtil.getCompactInt;
+
+/**
+ * Texture catalog of a package, cached on disk.
+ * <p>
+ * Index files live in {@code ~/.l2tool/index} (or {@code -Dl2tool.cache=dir})
+ * and are valid while size, modification time and GUID of the package
+ * stay the same.
+ */
+public class TextureIndex {
+    private static final int MAGIC = 0x4C325449;
+    private static final int VERSION = 1;
+
+    public static File getCacheDir() {
+        String dir = System.getProperty("l2tool.cache");
+        return dir != null ? new File(dir) : new File(System.getProperty("user.home"), ".l2tool" + File.separator + "index");
+    }
+
+    /**
+     * Returns cached catalog of the package, scans and caches it if the index
+     * is missing or stale.
+     */
+    public static List<MipMapInfo> get(UnrealPackage up, File file, DoubleConsumer progress) throws IOException {
+        List<MipMapInfo> textures = load(file, up.getGUID());
+        if (textures == null) {
+            textures = scan(up, file, progress);
+            save(file, up.getGUID(), textures);
+        }
+        return textures;
+    }
+
+    public static List<MipMapInfo> scan(UnrealPackage up, File file, DoubleConsumer progress) throws IOException {
+        List<MipMapInfo> textures = new ArrayList<>();
+        try (RandomAccessFile in = new RandomAccessFile(file, true, null)) {
+            List<UnrealPackage.ExportEntry> exports = up.getExportTable();
+            for (int i = 0; i < exports.size(); i++) {
+                UnrealPackage.ExportEntry ee = exports.get(i);
+                if (ee.getObjectClass() != null)
+                    switch (ee.getObjectClass().getObjectFullName()) {
+                        case "Engine.Texture":
+                            textures.add(MipMapInfo.getInfo(ee, in));
+                            break;
+                        case "Engine.GFxFlash":
+                            MipMapInfo info = getFlashInfo(ee);
+                            if (info != null)
+                                textures.add(info);
+                            break;
+                        default:
+                            //ignore
+                    }
+
+                if (progress != null)
+                    progress.accept((double) (i + 1) / exports.size());
+            }
+        }
+        return textures;
+    }
+
+    private static MipMapInfo getFlashInfo(UnrealPackage.ExportEntry ee) throws IOException {
+        UnrealPackage up = ee.getUnrealPackage();
+        byte[] raw = ee.getObjectRawData();
+        ByteBuffer data = ByteBuffer.wrap(raw);
+
+        new TextureProperties().read(up, data);
+
+        String ext = up.nameReference(getCompactInt(data)).toLowerCase();
+        switch (ext) {
+            case "tga": {
+                MipMapInfo info = new MipMapInfo();
+                info.exportIndex = ee.getIndex();
+                info.name = ee.getObjectFullName();
+
+                int dataLength = getCompactInt(data);
+
+                // initial header fields
+                int idLength = data.get() & 0xff;
+                int colorMapType = data.get() & 0xff;
+                int imageType = data.get() & 0xff;
+
+                // color map header fields
+                int firstEntryIndex = data.getShort() & 0xffff;
+                int colorMapLength = data.getShort() & 0xffff;
+                byte colorMapEntrySize = data.get();
+
+                // TGA image specification fields
+                int xOrigin = data.getShort() & 0xffff;
+                int yOrigin = data.getShort() & 0xffff;
+                int width = data.getShort() & 0xffff;
+                int height = data.getShort() & 0xffff;
+                byte pixelDepth = data.get();
+                byte imageDescriptor = data.get();
+
+                info.format = Img.Format.RGBA8;
+                info.width = width;
+                info.height = height;
+                info.offsets = new int[]{data.position()};
+                info.sizes = new int[]{raw.length - data.position()};
+                return info;
+            }
+            case "dds": {
+                MipMapInfo info = new MipMapInfo();
+                info.exportIndex = ee.getIndex();
+                info.name = ee.getObjectFullName();
+
+                byte[] dds = new byte[getCompactInt(data)];
+                int dataOffset = data.position();
+                data.get(dds);
+                ByteBuffer buffer = ByteBuffer.wrap(dds);
+                DDSImage image = DDSImage.read(buffer);
+                info.format = DDS.getFormat(image.getCompressionFormat());
+                info.width = image.getWidth();
+                info.height = image.getHeight();
+                DDSImage.ImageInfo[] infos = image.getAllMipMaps();
+                info.offsets = new int[infos.length];
+                info.sizes = new int[infos.length];
+                info.offsets[0] = 128 + dataOffset;
+                info.sizes[0] = infos[0].getData().limit();
+                for (int i = 1; i < infos.length; i++) {
+                    info.offsets[i] = info.offsets[i - 1] + info.sizes[i - 1];
+                    info.sizes[i] = infos[i].getData().limit();
+                }
+                return info;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private static File indexFile(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        return new File(getCacheDir(), file.getName() + "." + Integer.toHexString(path.hashCode()) + ".idx");
+    }
+
+    /**
+     * @return cached catalog or null if there is no valid index
+     */
+    public static List<MipMapInfo> load(File file, UUID guid) {
+        try {
+            File index = indexFile(file);
+            if (!index.isFile())
+                return null;
+
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                        !in.readUTF().equals(file.getCanonicalPath()) ||
+                        in.readLong() != file.length() ||
+                        in.readLong() != file.lastModified() ||
+                        !new UUID(in.readLong(), in.readLong()).equals(guid))
+                    return null;
+
+                int count = in.readInt();
+                List<MipMapInfo> textures = new ArrayList<>(count);
+                for (int i = 0; i < count; i++)
+                    textures.add(read(in));
+                return textures;
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Best effort, index is not written if the cache dir is not writable.
+     */
+    public static void save(File file, UUID guid, List<MipMapInfo> textures) {
+        try {
+            File index = indexFile(file);
+            File dir = index.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+                return;
+
+            File tmp = File.createTempFile(index.getName(), ".tmp", dir);
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(file.getCanonicalPath());
+                    out.writeLong(file.length());
+                    out.writeLong(file.lastModified());
+                    out.writeLong(guid.getMostSignificantBits());
+                    out.writeLong(guid.getLeastSignificantBits());
+                    out.writeInt(textures.size());
+                    for (MipMapInfo info : textures)
+                        write(info, out);
+                }
+                Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException | RuntimeException ignore) {
+        }
+    }
+
+    private static MipMapInfo read(DataInputStream in) throws IOException {
+        MipMapInfo info = new MipMapInfo();
+        info.name = in.readUTF();
+        info.exportIndex = in.readInt();
+        info.format = Img.Format.values()[in.readUnsignedByte()];
+        info.width = in.readInt();
+        info.height = in.readInt();
+        info.offsets = new int[in.readInt()];
+        info.sizes = new int[info.offsets.length];
+        for (int i = 0; i < info.offsets.length; i++) {
+            info.offsets[i] = in.readInt();
+            info.sizes[i] = in.readInt();
+        }
+        int paletteIndex = in.readInt();
+        if (paletteIndex >= 0) {
+            info.palette = new Palette(in.readInt());
+            info.palette.exportIndex = paletteIndex;
+            for (int i = 0; i < info.palette.colors.length; i++)
+                info.palette.colors[i] = in.readInt();
+        }
+        return info;
+    }
+
+    private static void write(MipMapInfo info, DataOutputStream out) throws IOException {
+        out.writeUTF(info.name);
+        out.writeInt(info.exportIndex);
+        out.writeByte(info.format.ordinal());
+        out.writeInt(info.width);
+        out.writeInt(info.height);
+        out.writeInt(info.offsets.length);
+        for (int i = 0; i < info.offsets.length; i++) {
+            out.writeInt(info.offsets[i]);
+            out.writeInt(info.sizes[i]);
+        }
+        if (info.palette != null) {
+            out.writeInt(info.palette.exportIndex);
+            out.writeInt(info.palette.colors.length);
+            for (int color : info.palette.colors)
+                out.writeInt(color);
+        } else {
+            out.writeInt(-1);
+        }
+    }
+}
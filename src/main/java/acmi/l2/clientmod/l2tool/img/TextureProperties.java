@@ -48,39 +48,44 @@ public class TextureProperties {
     public int getPalette() { return palette; }
 
     public TextureProperties read(UnrealPackage l2UnrealPackage, ByteBuffer buffer) {
+        return read(NameIndex.of(l2UnrealPackage), buffer);
+    }
+
+    public TextureProperties read(NameIndex names, ByteBuffer buffer) {
         buffer.order(ByteOrder.LITTLE_ENDIAN);
 
-        String name;
-        while (!(name = l2UnrealPackage.getNameTable().get(getCompactInt(buffer)).getName()).equals("None")) {
+        if (names.getNone() == -1)
+            throw new IllegalStateException("Name table has no None");
+
+        int formatName = names.get("Format");
+        int uSizeName = names.get("USize");
+        int vSizeName = names.get("VSize");
+        int paletteName = names.get("Palette");
+
+        int name;
+        while (!names.isNone(name = getCompactInt(buffer))) {
             int info = buffer.get() & 0xff;
             int propertyType = info & 0b1111;
             int sizeType = (info >> 4) & 0b111;
             boolean array = info >> 7 == 1;
 
-            String structName = propertyType == 10 ?
-                    l2UnrealPackage.getNameTable().get(getCompactInt(buffer)).getName() : null;
+            if (propertyType == 10)
+                getCompactInt(buffer);
             int size = getPropertySize(sizeType, buffer);
-            int arrayIndex = array && propertyType != 3 ? getCompactInt(buffer) : 0;
-
-            byte[] objBytes = new byte[size];
-            buffer.get(objBytes);
-            ByteBuffer objBuffer = ByteBuffer.wrap(objBytes);
-            objBuffer.order(ByteOrder.LITTLE_ENDIAN);
-
-            switch (name){
-                case "Format":
-                    format = Img.Format.values()[objBuffer.get() & 0xff];
-                    break;
-                case "USize":
-                    width = objBuffer.getInt();
-                    break;
-                case "VSize":
-                    height = objBuffer.getInt();
-                    break;
-                case "Palette":
-                    palette = getCompactInt(objBuffer);
-                    break;
+            if (array && propertyType != 3)
+                getCompactInt(buffer);
+
+            int valuePosition = buffer.position();
+            if (name == formatName) {
+                format = Img.Format.values()[buffer.get(valuePosition) & 0xff];
+            } else if (name == uSizeName) {
+                width = buffer.getInt(valuePosition);
+            } else if (name == vSizeName) {
+                height = buffer.getInt(valuePosition);
+            } else if (name == paletteName) {
+                palette = getCompactInt(buffer);
             }
+            buffer.position(valuePosition + size);
         }
 
         return this;
@@ -21,33 +21,50 @@
  */
 package acmi.l2.clientmod.l2tool.textureview;
 
+import acmi.l2.clientmod.l2tool.img.Img;
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleObjectProperty;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.CheckBox;
 import javafx.scene.control.ComboBox;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
 import javafx.scene.layout.BackgroundFill;
 import javafx.scene.layout.BackgroundImage;
+import javafx.scene.layout.Pane;
 import javafx.scene.layout.StackPane;
 import javafx.scene.paint.Color;
 
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
 
+/**
+ * Shows the mip level closest to the selected scale. The level is split
+ * into tiles, only tiles inside the visible part of the view are converted
+ * to FX images.
+ */
 public class TextureView implements Initializable {
+    private static final int TILE_SIZE = 256;
+
     @FXML
     private StackPane pane;
     @FXML
-    private ImageView image;
+    private Pane canvas;
     @FXML
     private CheckBox alpha;
     @FXML
@@ -55,11 +72,17 @@ public class TextureView implements Initializable {
     @FXML
     private ComboBox<Scale> scale;
 
-    private final ObjectProperty<BufferedImage> imageProperty = new SimpleObjectProperty<>();
+    private final ObjectProperty<Img> imgProperty = new SimpleObjectProperty<>();
     private final BooleanProperty alphaEnabledProperty = new SimpleBooleanProperty(true);
 
     private final ObjectProperty<Background> backgroundProperty = new SimpleObjectProperty<>(Background.CHECKERBOARD);
     private final ObjectProperty<Scale> scaleProperty = new SimpleObjectProperty<>(Scale.S1);
+    private final ObjectProperty<Consumer<Throwable>> onErrorProperty = new SimpleObjectProperty<>();
+
+    private final ReadOnlyObjectWrapper<Img> mipMapSource = new ReadOnlyObjectWrapper<>();
+    private int mipMapLevel;
+    private BufferedImage mipMap;
+    private final Map<Integer, Tile> tiles = new HashMap<>();
 
     public Background getBackground() {
         return backgroundProperty.get();
@@ -85,16 +108,40 @@ public class TextureView implements Initializable {
         scaleProperty.set(scale);
     }
 
-    public BufferedImage getImage() {
-        return imageProperty.get();
+    public Img getImg() {
+        return imgProperty.get();
+    }
+
+    public ObjectProperty<Img> imgProperty() {
+        return imgProperty;
+    }
+
+    public void setImg(Img img) {
+        imgProperty.set(img);
+    }
+
+    /**
+     * Texture the shown mip map belongs to, lags behind {@link #imgProperty()}
+     * while a level decodes.
+     */
+    public ReadOnlyObjectProperty<Img> mipMapSourceProperty() {
+        return mipMapSource.getReadOnlyProperty();
+    }
+
+    public Consumer<Throwable> getOnError() {
+        return onErrorProperty.get();
     }
 
-    public ObjectProperty<BufferedImage> imageProperty() {
-        return imageProperty;
+    /**
+     * Handler called on the FX thread when the shown mip map couldn't be
+     * decoded.
+     */
+    public ObjectProperty<Consumer<Throwable>> onErrorProperty() {
+        return onErrorProperty;
     }
 
-    public void setImage(BufferedImage image) {
-        imageProperty.set(image);
+    public void setOnError(Consumer<Throwable> onError) {
+        onErrorProperty.set(onError);
     }
 
     public boolean isAlphaEnabled() {
@@ -136,23 +183,188 @@ public class TextureView implements Initializable {
         scale.getItems().addAll(Scale.values());
         scale.valueProperty().bindBidirectional(scaleProperty());
 
-        image.imageProperty().bind(Bindings.createObjectBinding(() -> {
-            BufferedImage img = getImage();
-            if (img == null)
-                return null;
+        imgProperty().addListener(observable -> loadMipMap());
+        scaleProperty().addListener(observable -> loadMipMap());
+        alphaEnabledProperty().addListener(observable -> render());
+        pane.widthProperty().addListener(observable -> render());
+        pane.heightProperty().addListener(observable -> render());
+    }
+
+    /**
+     * @return level to show at the scale, may be greater than the number
+     * of levels of a texture
+     */
+    public static int getMipMapLevel(Scale scale) {
+        int level = 0;
+        for (double s = scale.scale; s <= 0.5; s *= 2)
+            level++;
+        return level;
+    }
+
+    private void loadMipMap() {
+        Img img = getImg();
+        if (img == null) {
+            setMipMap(null, 0, null);
+            return;
+        }
 
-            BufferedImage copy = new BufferedImage(img.getWidth(), img.getHeight(),
-                    alphaEnabledProperty().get() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
-            for (int x = 0; x < img.getWidth(); x++)
-                for (int y = 0; y < img.getHeight(); y++)
-                    copy.setRGB(x, y, img.getRGB(x, y));
+        int level = Math.min(getMipMapLevel(getScale()), img.getMipMapCount() - 1);
+        if (img != mipMapSource.get() || level != mipMapLevel)
+            CompletableFuture.supplyAsync(() -> img.getMipMap(level)).whenComplete((mipMap, e) -> Platform.runLater(() -> {
+                if (getImg() != img || Math.min(getMipMapLevel(getScale()), img.getMipMapCount() - 1) != level)
+                    return;
+
+                if (e == null)
+                    setMipMap(img, level, mipMap);
+                else if (getOnError() != null)
+                    getOnError().accept(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }));
+
+        render();
+    }
+
+    private void setMipMap(Img img, int level, BufferedImage mipMap) {
+        this.mipMapLevel = level;
+        this.mipMap = mipMap;
+        tiles.clear();
+        mipMapSource.set(img);
+        render();
+    }
 
-            WritableImage fxImage = new WritableImage(img.getWidth(), img.getHeight());
-            SwingFXUtils.toFXImage(copy, fxImage);
+    /**
+     * Lays out tiles of the current level that intersect the view, the
+     * canvas has the size of the whole texture at the selected scale and
+     * is centered in the view.
+     */
+    private void render() {
+        canvas.getChildren().clear();
+        if (mipMap == null)
+            return;
+
+        double width = mipMapSource.get().getWidth() * getScale().scale;
+        double height = mipMapSource.get().getHeight() * getScale().scale;
+        canvas.resizeRelocate((pane.getWidth() - width) / 2, (pane.getHeight() - height) / 2, width, height);
+
+        int mipMapWidth = mipMap.getWidth();
+        int mipMapHeight = mipMap.getHeight();
+        double pixelWidth = width / mipMapWidth;
+        double pixelHeight = height / mipMapHeight;
+        double left = Math.max(0, (width - pane.getWidth()) / 2);
+        double top = Math.max(0, (height - pane.getHeight()) / 2);
+        double right = Math.min(width, left + pane.getWidth());
+        double bottom = Math.min(height, top + pane.getHeight());
+        if (right <= left || bottom <= top)
+            return;
+
+        int columns = (mipMapWidth + TILE_SIZE - 1) / TILE_SIZE;
+        int fromX = (int) (left / pixelWidth) / TILE_SIZE;
+        int fromY = (int) (top / pixelHeight) / TILE_SIZE;
+        int toX = (Math.min(mipMapWidth, (int) Math.ceil(right / pixelWidth)) - 1) / TILE_SIZE;
+        int toY = (Math.min(mipMapHeight, (int) Math.ceil(bottom / pixelHeight)) - 1) / TILE_SIZE;
+        for (int ty = fromY; ty <= toY; ty++) {
+            for (int tx = fromX; tx <= toX; tx++) {
+                int x = tx * TILE_SIZE;
+                int y = ty * TILE_SIZE;
+                int tileWidth = Math.min(TILE_SIZE, mipMapWidth - x);
+                int tileHeight = Math.min(TILE_SIZE, mipMapHeight - y);
+                Tile tile = tiles.computeIfAbsent(ty * columns + tx,
+                        key -> Tile.of(mipMap, x, y, tileWidth, tileHeight));
+
+                ImageView view = new ImageView(isAlphaEnabled() ? tile.getImage() : tile.getOpaqueImage());
+                view.setSmooth(pixelWidth < 1);
+                view.setFitWidth(tileWidth * pixelWidth);
+                view.setFitHeight(tileHeight * pixelHeight);
+                view.relocate(x * pixelWidth, y * pixelHeight);
+                canvas.getChildren().add(view);
+            }
+        }
+    }
+
+    /**
+     * ARGB pixels of a region of a mip map and the FX images made from them,
+     * the opaque image is built from the same pixels on first use.
+     */
+    private static final class Tile {
+        private final int width;
+        private final int height;
+        private final int[] argb;
+        private final int offset;
+        private final int stride;
+        private WritableImage image;
+        private WritableImage opaqueImage;
+
+        private Tile(int width, int height, int[] argb, int offset, int stride) {
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+            this.offset = offset;
+            this.stride = stride;
+        }
+
+        /**
+         * Converts the region in one row-major pass straight from the
+         * raster of the formats the decoders produce, INT_ARGB rasters are
+         * used without a copy. Other images go through getRGB.
+         */
+        static Tile of(BufferedImage img, int x, int y, int width, int height) {
+            int imageWidth = img.getWidth();
+            DataBuffer buffer = img.getRaster().getDataBuffer();
+            int samples = img.getType() == BufferedImage.TYPE_4BYTE_ABGR ? 4 : 1;
+            if (buffer.getNumBanks() == 1 && buffer.getSize() == imageWidth * img.getHeight() * samples) {
+                int[] argb = img.getType() == BufferedImage.TYPE_INT_ARGB ? null : new int[width * height];
+                switch (img.getType()) {
+                    case BufferedImage.TYPE_INT_ARGB:
+                        return new Tile(width, height, ((DataBufferInt) buffer).getData(), y * imageWidth + x, imageWidth);
+                    case BufferedImage.TYPE_4BYTE_ABGR: {
+                        byte[] abgr = ((DataBufferByte) buffer).getData();
+                        for (int row = 0, i = 0; row < height; row++)
+                            for (int p = ((y + row) * imageWidth + x) * 4, end = p + width * 4; p < end; p += 4)
+                                argb[i++] = (abgr[p] & 0xff) << 24 | (abgr[p + 3] & 0xff) << 16 | (abgr[p + 2] & 0xff) << 8 | (abgr[p + 1] & 0xff);
+                        return new Tile(width, height, argb, 0, width);
+                    }
+                    case BufferedImage.TYPE_BYTE_INDEXED: {
+                        int[] colors = new int[256];
+                        ((IndexColorModel) img.getColorModel()).getRGBs(colors);
+                        byte[] indices = ((DataBufferByte) buffer).getData();
+                        for (int row = 0, i = 0; row < height; row++)
+                            for (int p = (y + row) * imageWidth + x, end = p + width; p < end; p++)
+                                argb[i++] = colors[indices[p] & 0xff];
+                        return new Tile(width, height, argb, 0, width);
+                    }
+                    case BufferedImage.TYPE_USHORT_GRAY: {
+                        short[] gray = ((DataBufferUShort) buffer).getData();
+                        for (int row = 0, i = 0; row < height; row++)
+                            for (int p = (y + row) * imageWidth + x, end = p + width; p < end; p++)
+                                argb[i++] = 0xff000000 | ((gray[p] & 0xffff) >>> 8) * 0x010101;
+                        return new Tile(width, height, argb, 0, width);
+                    }
+                }
+            }
+            return new Tile(width, height, img.getRGB(x, y, width, height, null, 0, width), 0, width);
+        }
+
+        WritableImage getImage() {
+            if (image == null)
+                image = toFXImage(argb, offset, stride);
+            return image;
+        }
+
+        WritableImage getOpaqueImage() {
+            if (opaqueImage == null) {
+                int[] opaque = new int[width * height];
+                for (int row = 0, i = 0; row < height; row++)
+                    for (int p = offset + row * stride, end = p + width; p < end; p++)
+                        opaque[i++] = argb[p] | 0xff000000;
+                opaqueImage = toFXImage(opaque, 0, width);
+            }
+            return opaqueImage;
+        }
+
+        private WritableImage toFXImage(int[] pixels, int offset, int stride) {
+            WritableImage fxImage = new WritableImage(width, height);
+            fxImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, offset, stride);
             return fxImage;
-        }, imageProperty(), alphaEnabledProperty()));
-        image.fitWidthProperty().bind(Bindings.createDoubleBinding(() -> image.getImage() == null ? 0d : image.getImage().getWidth() * getScale().scale, image.imageProperty(), scaleProperty()));
-        image.fitHeightProperty().bind(Bindings.createDoubleBinding(() -> image.getImage() == null ? 0d : image.getImage().getHeight() * getScale().scale, image.imageProperty(), scaleProperty()));
+        }
     }
 
     public enum Background {
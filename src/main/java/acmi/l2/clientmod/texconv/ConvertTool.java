@@ -22,25 +22,26 @@
 package acmi.l2.clientmod.texconv;
 
 import acmi.l2.clientmod.io.UnrealPackage;
+import acmi.l2.clientmod.l2tool.img.NameIndex;
 import acmi.l2.clientmod.l2tool.img.TextureProperties;
 
 import java.io.*;
-import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.charset.Charset;
 import java.util.*;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static acmi.l2.clientmod.io.BufferUtil.getCompactInt;
 import static acmi.l2.clientmod.io.BufferUtil.getString;
 import static acmi.l2.clientmod.io.ByteUtil.compactIntToByteArray;
 import static acmi.l2.clientmod.io.UnrealPackage.ObjectFlag.*;
 import static java.lang.Integer.reverseBytes;
-import static java.lang.Short.reverseBytes;
 
 public class ConvertTool {
     private static final int NEW_PACKAGE_VERSION = 0x76000000;
+    private static final int CONVERT_WINDOW = 64 * 1024 * 1024;
 
     public static void save(UnrealPackage up, File savePath) throws IOException {
         save(up, savePath, System.out);
@@ -55,8 +56,11 @@ public class ConvertTool {
             });
 
         List<UnrealPackage.NameEntry> nameTable = new ArrayList<>(up.getNameTable());
-        List<UnrealPackage.ImportEntry> importTable = new ArrayList<>(up.getImportTable());
+        List<ImportEntryAccessor.Raw> importTable = up.getImportTable().stream()
+                .map(ImportEntryAccessor::raw)
+                .collect(Collectors.toList());
         List<UnrealPackage.ExportEntry> exportTable = new ArrayList<>(up.getExportTable());
+        NameIndex names = new NameIndex(nameTable);
 
         int corePackageRef;
         if ((corePackageRef = up.objectReferenceByName("Core.Package", c -> c.equalsIgnoreCase("Core.Class"))) == 0) {
@@ -76,104 +80,107 @@ public class ConvertTool {
                 map.put("Class", UnrealPackage.ObjectFlag.getFlags(TagExp, HighlightedName, LoadForServer, LoadForEdit, Native));
                 map.put("Package", UnrealPackage.ObjectFlag.getFlags(TagExp, HighlightedName, LoadForServer, LoadForEdit, Native));
                 for (Map.Entry<String, Integer> entry : map.entrySet()) {
-                    UnrealPackage.NameEntry nameEntry = new UnrealPackage.NameEntry(up, nameTable.size(), entry.getKey(), entry.getValue());
-                    if (!nameTable.contains(nameEntry))
+                    if (names.get(entry.getKey()) == -1) {
+                        UnrealPackage.NameEntry nameEntry = new UnrealPackage.NameEntry(up, nameTable.size(), entry.getKey(), entry.getValue());
                         nameTable.add(nameEntry);
+                        names.add(nameEntry);
+                    }
+                }
+                Function<String, Integer> name = n -> {
+                    int index = names.get(n);
+                    if (index == -1)
+                        throw new IllegalStateException("");
+                    return index;
+                };
+
+                int coreName = name.apply("Core");
+                int packageName = name.apply("Package");
+                int coreIndex = -1;
+                for (int i = 0; i < importTable.size() && coreIndex == -1; i++) {
+                    ImportEntryAccessor.Raw importEntry = importTable.get(i);
+                    if (importEntry.classPackage == coreName &&
+                            importEntry.className == packageName &&
+                            importEntry.objectPackage == 0 &&
+                            importEntry.objectName == coreName)
+                        coreIndex = i;
                 }
-                Function<String, Integer> name = n -> nameTable.stream()
-                        .filter(ne -> ne.getName().equalsIgnoreCase(n))
-                        .findAny()
-                        .map(ne -> ne.getIndex())
-                        .orElseThrow(() -> new IllegalStateException(""));
-
-                UnrealPackage.ImportEntry core = new UnrealPackage.ImportEntry(
-                        up, importTable.size(),
-                        name.apply("Core"), name.apply("Package"), 0, name.apply("Core"));
-                int coreIndex;
-                if ((coreIndex = importTable.indexOf(core)) == -1) {
+                if (coreIndex == -1) {
                     coreIndex = importTable.size();
-                    importTable.add(core);
+                    importTable.add(new ImportEntryAccessor.Raw(coreName, packageName, 0, coreName));
                 }
-                importTable.add(new UnrealPackage.ImportEntry(
-                        up, importTable.size(),
-                        name.apply("Core"), name.apply("Class"), -(coreIndex + 1), name.apply("Package")));
+                importTable.add(new ImportEntryAccessor.Raw(coreName, name.apply("Class"), -(coreIndex + 1), packageName));
                 corePackageRef = -importTable.size();
             }
         }
 
-        try (RandomAccessFile dest = new RandomAccessFile(savePath, "rw")) {
-            Field objectPackage = UnrealPackage.Entry.class.getDeclaredField("objectPackage");
-            objectPackage.setAccessible(true);
-            Field objectName = UnrealPackage.Entry.class.getDeclaredField("objectName");
-            objectName.setAccessible(true);
-            Field classPackage = UnrealPackage.ImportEntry.class.getDeclaredField("classPackage");
-            classPackage.setAccessible(true);
-            Field className = UnrealPackage.ImportEntry.class.getDeclaredField("className");
-            className.setAccessible(true);
-
-            dest.setLength(0);
-
-            dest.writeInt(reverseBytes(0x9E2A83C1));
-            dest.writeInt(NEW_PACKAGE_VERSION);
-            dest.writeInt(Integer.reverseBytes(up.getFlags()));
-            dest.writeInt(Integer.reverseBytes(nameTable.size()));
-            dest.writeInt(0);
-            dest.writeInt(Integer.reverseBytes(exportTable.size()));
-            dest.writeInt(0);
-            dest.writeInt(Integer.reverseBytes(importTable.size()));
-            dest.writeInt(0);
-            dest.writeInt(reverseBytes((int) (up.getGUID().getMostSignificantBits() >> 32)));
-            dest.writeShort(reverseBytes((short) (up.getGUID().getMostSignificantBits() >> 16)));
-            dest.writeShort(reverseBytes((short) up.getGUID().getMostSignificantBits()));
-            dest.writeLong(up.getGUID().getLeastSignificantBits());
-            dest.writeInt(Integer.reverseBytes(up.getGenerations().size()));
+        try (PackageWriter dest = new PackageWriter(savePath)) {
+            ByteBuffer header = ByteBuffer.allocate(56 + up.getGenerations().size() * 8).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0x9E2A83C1);
+            header.putInt(reverseBytes(NEW_PACKAGE_VERSION));
+            header.putInt(up.getFlags());
+            header.putInt(nameTable.size());
+            header.putInt(0);
+            header.putInt(exportTable.size());
+            header.putInt(0);
+            header.putInt(importTable.size());
+            header.putInt(0);
+            header.putInt((int) (up.getGUID().getMostSignificantBits() >> 32));
+            header.putShort((short) (up.getGUID().getMostSignificantBits() >> 16));
+            header.putShort((short) up.getGUID().getMostSignificantBits());
+            header.order(ByteOrder.BIG_ENDIAN).putLong(up.getGUID().getLeastSignificantBits()).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(up.getGenerations().size());
             for (UnrealPackage.Generation generation : up.getGenerations()) {
-                dest.writeInt(Integer.reverseBytes(generation.getExportCount()));
-                dest.writeInt(Integer.reverseBytes(generation.getNameCount()));
+                header.putInt(generation.getExportCount());
+                header.putInt(generation.getNameCount());
             }
+            header.flip();
+            dest.write(header);
 
-            int noneInd = 0;
-            int nameOffset = (int) dest.getFilePointer();
-            dest.seek(16);
-            dest.writeInt(reverseBytes(nameOffset));
-            dest.seek(nameOffset);
-            for (int i = 0; i < nameTable.size(); i++) {
-                UnrealPackage.NameEntry nameEntry = nameTable.get(i);
+            int noneInd = Math.max(names.getLastNone(), 0);
+            header.putInt(16, dest.position());
+            for (UnrealPackage.NameEntry nameEntry : nameTable) {
                 if (!isASCII(nameEntry.getName()))
                     log.println("UTF->ASCII: " + nameEntry.getName());
-                writeString(dest, nameEntry.getName());
-                dest.writeInt(Integer.reverseBytes(nameEntry.getFlags()));
-
-                if (nameEntry.getName().equals("None"))
-                    noneInd = i;
+                dest.writeString(nameEntry.getName());
+                dest.writeInt(nameEntry.getFlags());
             }
 
             int[] exportSizes = new int[exportTable.size()];
             int[] exportOffsets = new int[exportTable.size()];
-            for (int i = 0; i < exportTable.size(); i++) {
-                exportOffsets[i] = (int) dest.getFilePointer();
-                UnrealPackage.ExportEntry exportEntry = exportTable.get(i);
-                byte[] raw = exportEntry.getObjectRawData();
-                byte[] data = convert(up, raw, exportEntry.getObjectClass().toString(), up.getVersion(), up.getLicense(), noneInd, exportEntry.getOffset(), exportOffsets[i]);
-                exportSizes[i] = data.length;
-                dest.write(data);
+            for (int start = 0; start < exportTable.size(); ) {
+                List<byte[]> raw = new ArrayList<>();
+                long rawSize = 0;
+                while (start + raw.size() < exportTable.size() && rawSize < CONVERT_WINDOW) {
+                    byte[] data = exportTable.get(start + raw.size()).getObjectRawData();
+                    rawSize += data.length;
+                    raw.add(data);
+                }
+
+                int first = start;
+                Converted[] converted = new Converted[raw.size()];
+                IntStream.range(0, converted.length).parallel().forEach(j -> {
+                    UnrealPackage.ExportEntry exportEntry = exportTable.get(first + j);
+                    converted[j] = convert(names, raw.get(j), exportEntry.getObjectClass().toString(), up.getVersion(), up.getLicense(), noneInd, exportEntry.getOffset());
+                });
+
+                for (Converted c : converted) {
+                    exportOffsets[start] = dest.position();
+                    exportSizes[start] = c.data.length;
+                    c.relocate(exportOffsets[start]);
+                    dest.write(c.data);
+                    start++;
+                }
             }
 
-            int importOffset = (int) dest.getFilePointer();
-            dest.seek(32);
-            dest.writeInt(reverseBytes(importOffset));
-            dest.seek(importOffset);
-            for (UnrealPackage.ImportEntry importEntry : importTable) {
-                writeCompactInt(dest, classPackage.getInt(importEntry));
-                writeCompactInt(dest, className.getInt(importEntry));
-                dest.writeInt(Integer.reverseBytes(objectPackage.getInt(importEntry)));
-                writeCompactInt(dest, objectName.getInt(importEntry));
+            header.putInt(32, dest.position());
+            for (ImportEntryAccessor.Raw importEntry : importTable) {
+                dest.writeCompactInt(importEntry.classPackage);
+                dest.writeCompactInt(importEntry.className);
+                dest.writeInt(importEntry.objectPackage);
+                dest.writeCompactInt(importEntry.objectName);
             }
 
-            int exportOffset = (int) dest.getFilePointer();
-            dest.seek(24);
-            dest.writeInt(reverseBytes(exportOffset));
-            dest.seek(exportOffset);
+            header.putInt(24, dest.position());
             for (int i = 0; i < exportTable.size(); i++) {
                 UnrealPackage.ExportEntry exportEntry = exportTable.get(i);
                 int objClass = ref(exportEntry.getObjectClass());
@@ -184,16 +191,17 @@ public class ConvertTool {
                     objClass = corePackageRef;
                     log.println("REMOVED: " + exportEntry.toString() + "[" + exportEntry.getObjectClass().getObjectFullName() + "]");
                 }
-                writeCompactInt(dest, objClass);
-                writeCompactInt(dest, ref(exportEntry.getObjectSuperClass()));
-                dest.writeInt(Integer.reverseBytes(ref(exportEntry.getObjectPackage())));
-                writeCompactInt(dest, exportEntry.getObjectName().getIndex());
-                dest.writeInt(Integer.reverseBytes(exportEntry.getObjectFlags()));
-                writeCompactInt(dest, exportSizes[i]);
-                writeCompactInt(dest, exportOffsets[i]);
+                dest.writeCompactInt(objClass);
+                dest.writeCompactInt(ref(exportEntry.getObjectSuperClass()));
+                dest.writeInt(ref(exportEntry.getObjectPackage()));
+                dest.writeCompactInt(exportEntry.getObjectName().getIndex());
+                dest.writeInt(exportEntry.getObjectFlags());
+                dest.writeCompactInt(exportSizes[i]);
+                dest.writeCompactInt(exportOffsets[i]);
             }
-        } catch (ReflectiveOperationException e) {
-            throw new RuntimeException(e);
+
+            header.rewind();
+            dest.write(header, 0);
         }
     }
 
@@ -201,17 +209,6 @@ public class ConvertTool {
         return e == null ? 0 : e.getObjectReference();
     }
 
-    private static void writeCompactInt(RandomAccessFile raf, int v) throws IOException {
-        raf.write(compactIntToByteArray(v));
-    }
-
-    private static void writeString(RandomAccessFile raf, String s) throws IOException {
-        byte[] nameBytes = s.getBytes(Charset.forName("ascii"));
-        writeCompactInt(raf, nameBytes.length + 1);
-        raf.write(nameBytes);
-        raf.write(0);
-    }
-
     public static boolean isTexture(String objClass) {
         return objClass != null && TEXTURE.contains(objClass);
     }
@@ -269,16 +266,21 @@ public class ConvertTool {
         return true;
     }
 
-    private static byte[] convert(UnrealPackage up, byte[] src, String objClass, int version, int licensee, int noneInd, int off1, int off2) {
+    /**
+     * Converts object data as if it was written at offset 0, absolute mip
+     * offsets are fixed by {@link Converted#relocate(int)}.
+     */
+    private static Converted convert(NameIndex names, byte[] src, String objClass, int version, int licensee, int noneInd, int off1) {
         if (AS_IS.contains(objClass))
-            return src;
+            return new Converted(src, new int[0]);
 
         else if (WITH_PROPS.contains(objClass) || TEXTURE.contains(objClass)) {
             ByteBuffer obj = ByteBuffer.wrap(src);
             obj.order(ByteOrder.LITTLE_ENDIAN);
             ByteBuffer res = ByteBuffer.allocate(src.length);
             res.order(ByteOrder.LITTLE_ENDIAN);
-            new TextureProperties().read(up, obj);
+            int[] relocations = new int[0];
+            new TextureProperties().read(names, obj);
             res.put(src, 0, obj.position());
 
             if (TEXTURE.contains(objClass)) {
@@ -286,15 +288,15 @@ public class ConvertTool {
 
                 int mipMapCount = obj.get() & 0xff;
                 res.put((byte) mipMapCount);
+                relocations = new int[mipMapCount];
                 for (int i = 0; i < mipMapCount; i++) {
                     int off = obj.getInt();
                     int size = getCompactInt(obj);
                     byte[] indexSize = compactIntToByteArray(size);
-                    res.putInt(res.position() + off2 + indexSize.length + size + 4);
-                    res.put(compactIntToByteArray(size));
-                    byte[] data = new byte[size];
-                    obj.get(data);
-                    res.put(data);
+                    relocations[i] = res.position();
+                    res.putInt(res.position() + indexSize.length + size + 4);
+                    res.put(indexSize);
+                    res.put(src, obj.position(), size);
                     obj.position(off - off1);
                     res.putInt(obj.getInt());
                     res.putInt(obj.getInt());
@@ -320,9 +322,25 @@ public class ConvertTool {
             res.flip();
             byte[] newObj = new byte[res.limit()];
             res.get(newObj);
-            return newObj;
+            return new Converted(newObj, relocations);
         } else {
-            return new byte[]{(byte) noneInd};
+            return new Converted(new byte[]{(byte) noneInd}, new int[0]);
+        }
+    }
+
+    private static class Converted {
+        final byte[] data;
+        final int[] relocations;
+
+        Converted(byte[] data, int[] relocations) {
+            this.data = data;
+            this.relocations = relocations;
+        }
+
+        void relocate(int offset) {
+            ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            for (int relocation : relocations)
+                buffer.putInt(relocation, buffer.getInt(relocation) + offset);
         }
     }
 
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.texconv;
+
+import acmi.l2.clientmod.io.UnrealPackage;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Raw name/object references of {@link UnrealPackage.ImportEntry}.
+ * <p>
+ * l2io keeps them in private fields, method handles to them are resolved once.
+ * If the fields are not accessible, references are taken from the public
+ * getters, which only works for entries that belong to the package table.
+ * Entries the converter adds itself are kept as {@link Raw} references.
+ */
+final class ImportEntryAccessor {
+    private static final MethodHandle CLASS_PACKAGE = getter(UnrealPackage.ImportEntry.class, "classPackage");
+    private static final MethodHandle CLASS_NAME = getter(UnrealPackage.ImportEntry.class, "className");
+    private static final MethodHandle OBJECT_PACKAGE = getter(UnrealPackage.Entry.class, "objectPackage");
+    private static final MethodHandle OBJECT_NAME = getter(UnrealPackage.Entry.class, "objectName");
+
+    private ImportEntryAccessor() {
+    }
+
+    /**
+     * Import references as written to the package.
+     */
+    static final class Raw {
+        final int classPackage;
+        final int className;
+        final int objectPackage;
+        final int objectName;
+
+        Raw(int classPackage, int className, int objectPackage, int objectName) {
+            this.classPackage = classPackage;
+            this.className = className;
+            this.objectPackage = objectPackage;
+            this.objectName = objectName;
+        }
+    }
+
+    /**
+     * @param entry entry of the import table of its package
+     */
+    static Raw raw(UnrealPackage.ImportEntry entry) {
+        return new Raw(classPackage(entry), className(entry), objectPackage(entry), objectName(entry));
+    }
+
+    static int classPackage(UnrealPackage.ImportEntry entry) {
+        if (CLASS_PACKAGE == null)
+            return entry.getClassPackage().getIndex();
+        try {
+            return (int) CLASS_PACKAGE.invokeExact(entry);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static int className(UnrealPackage.ImportEntry entry) {
+        if (CLASS_NAME == null)
+            return entry.getClassName().getIndex();
+        try {
+            return (int) CLASS_NAME.invokeExact(entry);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static int objectPackage(UnrealPackage.ImportEntry entry) {
+        if (OBJECT_PACKAGE == null)
+            return entry.getObjectPackage() == null ? 0 : entry.getObjectPackage().getObjectReference();
+        try {
+            return (int) OBJECT_PACKAGE.invokeExact(entry);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static int objectName(UnrealPackage.ImportEntry entry) {
+        if (OBJECT_NAME == null)
+            return entry.getObjectName().getIndex();
+        try {
+            return (int) OBJECT_NAME.invokeExact(entry);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static MethodHandle getter(Class<?> clazz, String name) {
+        try {
+            Field field = clazz.getDeclaredField(name);
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .unreflectGetter(field)
+                    .asType(MethodType.methodType(int.class, UnrealPackage.ImportEntry.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
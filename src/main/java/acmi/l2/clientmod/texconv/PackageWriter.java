@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016 acmi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package acmi.l2.clientmod.texconv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import static acmi.l2.clientmod.io.ByteUtil.compactIntToByteArray;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Little-endian package writer buffering small writes in memory and flushing
+ * them to a {@link FileChannel} in large chunks.
+ */
+class PackageWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final Charset ASCII = Charset.forName("ascii");
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private long flushed;
+
+    PackageWriter(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), CREATE, WRITE, TRUNCATE_EXISTING);
+    }
+
+    int position() {
+        return (int) (flushed + buffer.position());
+    }
+
+    void writeByte(int v) throws IOException {
+        ensure(1);
+        buffer.put((byte) v);
+    }
+
+    void writeInt(int v) throws IOException {
+        ensure(4);
+        buffer.putInt(v);
+    }
+
+    void writeCompactInt(int v) throws IOException {
+        write(compactIntToByteArray(v));
+    }
+
+    void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(ASCII);
+        writeCompactInt(bytes.length + 1);
+        write(bytes);
+        writeByte(0);
+    }
+
+    void write(byte[] data) throws IOException {
+        write(ByteBuffer.wrap(data));
+    }
+
+    void write(ByteBuffer data) throws IOException {
+        if (data.remaining() <= buffer.remaining()) {
+            buffer.put(data);
+            return;
+        }
+
+        buffer.flip();
+        ByteBuffer[] buffers = {buffer, data};
+        while (buffer.hasRemaining() || data.hasRemaining())
+            flushed += channel.write(buffers);
+        buffer.clear();
+    }
+
+    /**
+     * Overwrites already written bytes, e.g. a header patched in memory.
+     */
+    void write(ByteBuffer data, int position) throws IOException {
+        flush();
+        while (data.hasRemaining())
+            position += channel.write(data, position);
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            flushed += channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void ensure(int size) throws IOException {
+        if (buffer.remaining() < size)
+            flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}